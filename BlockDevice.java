@@ -0,0 +1,17 @@
+// Where the Kernel sends raw block I/O: one DiskQueue in front of one Disk, or a DiskArray
+// spreading the blocks over several of them. Block numbers are the volume's, whatever
+// the device does with them underneath.
+public interface BlockDevice
+{
+    // Blocking requests; each returns once the block has been transferred, or false if it
+    // was rejected.
+    boolean read(int blockId, byte buffer[]);
+
+    boolean write(int blockId, byte buffer[]);
+
+    // Returns once everything submitted before it is on the disk image.
+    boolean sync();
+
+    // Queue requests without waiting; the caller waits on each one (see IOBatch).
+    void submit(DiskRequest requests[]);
+}
@@ -0,0 +1,114 @@
+// Block layer used by the file system.
+// SuperBlock, Inode and FileSystem read and write their blocks through here rather than
+// calling SysLib.rawread/rawwrite themselves, so the Kernel can choose at BOOT whether
+// file system blocks go straight to the Disk or through the write-back Cache.
+public class BlockIO
+{
+    public final static int RAW = 0;       // every access is a round trip to the Disk thread
+    public final static int CACHED = 1;    // accesses go through the Cache (CREAD/CWRITE)
+
+    private static int mode = CACHED;
+
+    public static void setMode(int blockMode)
+    {
+        mode = blockMode;
+    }
+
+    public static int getMode()
+    {
+        return mode;
+    }
+
+    // Parse the name given on the command line (-Dthreados.blocklayer=raw|cached).
+    public static int parseMode(String name)
+    {
+        if (name != null && name.equalsIgnoreCase("raw"))
+            return RAW;
+        return CACHED;
+    }
+
+    public static int read(int blkNumber, byte[] b)
+    {
+        if (mode == CACHED)
+            return SysLib.cread(blkNumber, b);
+        return SysLib.rawread(blkNumber, b);
+    }
+
+    // Read several blocks with one batch of disk requests instead of one round trip each.
+    public static int read(int[] blkNumbers, byte[][] b)
+    {
+        if (mode == CACHED)
+            return SysLib.creadv(blkNumbers, b);
+
+        IOBatch batch = SysLib.aread(blkNumbers, b);
+        if (batch == null)
+            return Kernel.ERROR;
+        return SysLib.await(batch);
+    }
+
+    public static int write(int blkNumber, byte[] b)
+    {
+        if (mode == CACHED)
+            return SysLib.cwrite(blkNumber, b);
+        return SysLib.rawwrite(blkNumber, b);
+    }
+
+    // Copy part of a block into b[offset..offset+length). Through the cache this copies
+    // straight out of the cached page; without it the block has to be read whole first.
+    public static int read(int blkNumber, int blkOffset, byte[] b, int offset, int length)
+    {
+        if (mode == CACHED)
+            return SysLib.cread(blkNumber, blkOffset, b, offset, length);
+
+        byte[] data = new byte[Disk.blockSize];
+        if (SysLib.rawread(blkNumber, data) == Kernel.ERROR)
+            return Kernel.ERROR;
+        System.arraycopy(data, blkOffset, b, offset, length);
+        return Kernel.OK;
+    }
+
+    // Overwrite part of a block with b[offset..offset+length).
+    public static int write(int blkNumber, int blkOffset, byte[] b, int offset, int length)
+    {
+        return write(blkNumber, blkOffset, b, offset, length, false);
+    }
+
+    // Same, where fresh says the block was just allocated: its old contents don't matter,
+    // so it is never read first and the rest of it ends up zeroed.
+    public static int write(int blkNumber, int blkOffset, byte[] b, int offset, int length, boolean fresh)
+    {
+        if (mode == CACHED)
+            return SysLib.cwrite(blkNumber, blkOffset, b, offset, length, fresh);
+
+        byte[] data = new byte[Disk.blockSize];
+        if (!fresh && length < Disk.blockSize && SysLib.rawread(blkNumber, data) == Kernel.ERROR)
+            return Kernel.ERROR;
+        System.arraycopy(b, offset, data, blkOffset, length);
+        return SysLib.rawwrite(blkNumber, data);
+    }
+
+    // Get the blocks into the cache with one batch, ahead of reading them piece by piece.
+    // Without the cache there is nowhere to keep them, so this does nothing.
+    public static int load(int[] blkNumbers)
+    {
+        if (mode == CACHED)
+            return SysLib.cload(blkNumbers);
+        return Kernel.OK;
+    }
+
+    // Make sure the disk has the latest contents of these blocks. Without the cache it already does.
+    public static int sync(int[] blkNumbers)
+    {
+        if (mode == CACHED)
+            return SysLib.csync(blkNumbers);
+        return Kernel.OK;
+    }
+
+    // Start getting the blocks into the cache and return right away. Does nothing without it.
+    public static int prefetch(int[] blkNumbers)
+    {
+        if (mode == CACHED)
+            return SysLib.cprefetch(blkNumbers);
+        return Kernel.OK;
+    }
+}
@@ -0,0 +1,574 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Write-back buffer cache behind CREAD/CWRITE/CSYNC/CFLUSH.
+// Blocks are spread over several shards by block number. Each shard has its own lock,
+// its own frames, a hash index from block number to frame and its own replacement policy,
+// so threads working on different blocks rarely wait on each other and a hit is O(1).
+public class BufferCache
+{
+    public final static int INVALID = -1;
+
+    private int blockSize;
+    private int cacheBlocks;
+    private Shard shards[];
+    private Completer completer;            // finishes prefetches nobody is waiting for
+
+    public BufferCache(int blockSize, int cacheBlocks, int shardCount, String policy)
+    {
+        this.blockSize = blockSize;
+        if (cacheBlocks < 1)
+            cacheBlocks = 1;
+        this.cacheBlocks = cacheBlocks;
+        if (shardCount < 1)
+            shardCount = 1;
+        if (shardCount > cacheBlocks)
+            shardCount = cacheBlocks;          // Every shard needs at least one frame.
+
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+        {
+            // Spread the remainder over the first few shards.
+            int frames = cacheBlocks / shardCount + (i < cacheBlocks % shardCount ? 1 : 0);
+            shards[i] = new Shard(frames, newPolicy(policy, frames));
+        }
+        completer = new Completer();
+        completer.setDaemon(true);
+        completer.start();
+    }
+
+    // Build a replacement policy from its name: "clock", "lru" or "2q".
+    public static EvictionPolicy newPolicy(String name, int frames)
+    {
+        if (name != null && name.equalsIgnoreCase("lru"))
+            return new LRUPolicy(frames);
+        if (name != null && name.equalsIgnoreCase("2q"))
+            return new TwoQueuePolicy(frames);
+        return new ClockPolicy(frames);
+    }
+
+    private Shard shardFor(int blockId)
+    {
+        return shards[blockId % shards.length];
+    }
+
+    public boolean read(int blockId, byte buffer[])
+    {
+        return read(blockId, 0, buffer, 0, blockSize);
+    }
+
+    public boolean write(int blockId, byte buffer[])
+    {
+        return write(blockId, 0, buffer, 0, blockSize);
+    }
+
+    // Copy length bytes starting at blockOffset in the block straight into buffer[offset..].
+    public boolean read(int blockId, int blockOffset, byte buffer[], int offset, int length)
+    {
+        if (blockId < 0 || !inRange(blockOffset, offset, length, buffer))
+        {
+            SysLib.cerr("threadOS: a wrong blockId for cread\n");
+            return false;
+        }
+        return shardFor(blockId).read(blockId, blockOffset, buffer, offset, length);
+    }
+
+    // Copy buffer[offset..offset+length) into the block at blockOffset.
+    public boolean write(int blockId, int blockOffset, byte buffer[], int offset, int length)
+    {
+        return write(blockId, blockOffset, buffer, offset, length, false);
+    }
+
+    // Same, for a block that may be fresh: just allocated, so whatever is on the disk there is
+    // garbage. A fresh block starts out as zeros and is never read from the disk.
+    public boolean write(int blockId, int blockOffset, byte buffer[], int offset, int length, boolean fresh)
+    {
+        if (blockId < 0 || !inRange(blockOffset, offset, length, buffer))
+        {
+            SysLib.cerr("threadOS: a wrong blockId for cwrite\n");
+            return false;
+        }
+        return shardFor(blockId).write(blockId, blockOffset, buffer, offset, length, fresh);
+    }
+
+    private boolean inRange(int blockOffset, int offset, int length, byte buffer[])
+    {
+        return blockOffset >= 0 && offset >= 0 && length >= 0
+            && blockOffset + length <= blockSize && offset + length <= buffer.length;
+    }
+
+    // Bring several blocks into the cache. Every block that isn't cached gets a frame reserved
+    // first, then all of them are fetched with a single batch of disk requests.
+    public boolean load(int blockIds[])
+    {
+        int missing[] = new int[blockIds.length];
+        byte frames[][] = new byte[blockIds.length][];
+        int count = 0;
+
+        // Check them all before reserving anything; a reserved frame has to be read or cancelled.
+        if (!validIds(blockIds))
+        {
+            SysLib.cerr("threadOS: a wrong blockId for cread\n");
+            return false;
+        }
+        for (int i = 0; i < blockIds.length; i++)
+        {
+            byte page[] = shardFor(blockIds[i]).reserve(blockIds[i]);
+            if (page != null)
+            {
+                missing[count] = blockIds[i];
+                frames[count] = page;
+                count++;
+            }
+        }
+
+        if (count > 0)
+        {
+            missing = Arrays.copyOf(missing, count);
+            IOBatch batch = SysLib.aread(missing, Arrays.copyOf(frames, count));
+            boolean ok = batch != null && SysLib.await(batch) == Kernel.OK;
+            finish(missing, ok);
+            return ok;
+        }
+        return true;
+    }
+
+    private static boolean validIds(int blockIds[])
+    {
+        for (int i = 0; i < blockIds.length; i++)
+        {
+            if (blockIds[i] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Start reading blocks into the cache and return without waiting. Anyone who asks for one
+    // of them before it arrives waits for it. At most a quarter of the cache goes to one call,
+    // so read-ahead can't push out everything else.
+    public boolean prefetch(int blockIds[])
+    {
+        int limit = Math.max(1, cacheBlocks / 4);
+        int missing[] = new int[Math.min(blockIds.length, limit)];
+        byte frames[][] = new byte[missing.length][];
+        int count = 0;
+
+        if (!validIds(blockIds))
+            return false;
+        for (int i = 0; i < blockIds.length && count < missing.length; i++)
+        {
+            byte page[] = shardFor(blockIds[i]).reserve(blockIds[i]);
+            if (page != null)
+            {
+                missing[count] = blockIds[i];
+                frames[count] = page;
+                count++;
+            }
+        }
+
+        if (count > 0)
+        {
+            missing = Arrays.copyOf(missing, count);
+            IOBatch batch = SysLib.aread(missing, Arrays.copyOf(frames, count));
+            if (batch == null)
+                finish(missing, false);
+            else
+                completer.add(batch, missing);
+        }
+        return true;
+    }
+
+    // A batch read for reserved blocks is over: make them available, or drop them if it failed.
+    private void finish(int blockIds[], boolean ok)
+    {
+        for (int i = 0; i < blockIds.length; i++)
+        {
+            if (ok)
+                shardFor(blockIds[i]).loaded(blockIds[i]);
+            else
+                shardFor(blockIds[i]).cancel(blockIds[i]);
+        }
+    }
+
+    // Read several blocks, fetching the ones that aren't cached in one batch.
+    public boolean read(int blockIds[], byte buffers[][])
+    {
+        if (!load(blockIds))
+            return false;
+
+        // Everything is resident now (unless it was evicted again in the meantime,
+        // in which case the single-block read simply fetches it).
+        for (int i = 0; i < blockIds.length; i++)
+            shardFor(blockIds[i]).read(blockIds[i], 0, buffers[i], 0, blockSize);
+        return true;
+    }
+
+    // Write every dirty block back to the disk, keeping the cached copies.
+    public void sync()
+    {
+        for (int i = 0; i < shards.length; i++)
+            shards[i].sync();
+    }
+
+    // Write back the given blocks if they're cached and dirty.
+    public void sync(int blockIds[])
+    {
+        for (int i = 0; i < blockIds.length; i++)
+        {
+            if (blockIds[i] >= 0)
+                shardFor(blockIds[i]).sync(blockIds[i]);
+        }
+    }
+
+    // Empty the cache without writing anything back. Blocks still being read by a batch stay.
+    public void invalidate()
+    {
+        for (int i = 0; i < shards.length; i++)
+            shards[i].invalidate();
+    }
+
+    // Write every dirty block back to the disk and empty the cache.
+    public void flush()
+    {
+        for (int i = 0; i < shards.length; i++)
+            shards[i].flush();
+    }
+
+    private class Shard
+    {
+        private byte pages[][];
+        private int frameBlock[];               // block held by each frame, or INVALID
+        private boolean dirty[];
+        private boolean loading[];              // reserved, with a batch read still in flight
+        private int validFrom[];                // bytes [validFrom, validTo) of each page are
+        private int validTo[];                  // up to date; the rest still has to be read
+        private HashMap<Integer, Integer> index; // block number -> frame
+        private int freeFrames[];               // stack of unused frames
+        private int freeCount;
+        private EvictionPolicy policy;
+        // Not the shard's monitor: a virtual thread waiting on the disk while it holds this is
+        // parked, not pinned to its carrier.
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition(); // a frame finished loading or was freed
+
+        public Shard(int frames, EvictionPolicy policy)
+        {
+            pages = new byte[frames][blockSize];
+            frameBlock = new int[frames];
+            dirty = new boolean[frames];
+            loading = new boolean[frames];
+            validFrom = new int[frames];
+            validTo = new int[frames];
+            index = new HashMap<Integer, Integer>(frames * 2);
+            freeFrames = new int[frames];
+            for (int i = 0; i < frames; i++)
+            {
+                frameBlock[i] = INVALID;
+                freeFrames[i] = frames - 1 - i;  // Hand out frame 0 first.
+            }
+            freeCount = frames;
+            this.policy = policy;
+        }
+
+        public boolean read(int blockId, int blockOffset, byte buffer[], int offset, int length)
+        {
+            lock.lock();
+            try
+            {
+                int frame = lookup(blockId);
+                if (blockOffset < validFrom[frame] || blockOffset + length > validTo[frame])
+                    fill(frame);                    // Part of what's wanted hasn't been read yet.
+                System.arraycopy(pages[frame], blockOffset, buffer, offset, length);
+                return true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public boolean write(int blockId, int blockOffset, byte buffer[], int offset, int length, boolean fresh)
+        {
+            lock.lock();
+            try
+            {
+                int frame = lookup(blockId);
+                if (fresh)
+                {
+                    Arrays.fill(pages[frame], (byte)0);
+                    validFrom[frame] = 0;
+                    validTo[frame] = blockSize;
+                }
+                else if (validFrom[frame] == validTo[frame])
+                {
+                    // Nothing in the page yet; it holds just what's written now.
+                    validFrom[frame] = blockOffset;
+                    validTo[frame] = blockOffset + length;
+                }
+                else if (blockOffset <= validTo[frame] && blockOffset + length >= validFrom[frame])
+                {
+                    // Touches or overlaps what's there, so the two merge into one range.
+                    validFrom[frame] = Math.min(validFrom[frame], blockOffset);
+                    validTo[frame] = Math.max(validTo[frame], blockOffset + length);
+                }
+                else
+                    fill(frame);                    // A gap would be left; read the rest now.
+
+                System.arraycopy(buffer, offset, pages[frame], blockOffset, length);
+                dirty[frame] = true;
+                return true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public void sync()
+        {
+            lock.lock();
+            try
+            {
+                for (int i = 0; i < frameBlock.length; i++)
+                    writeBack(i);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public void sync(int blockId)
+        {
+            lock.lock();
+            try
+            {
+                Integer frame = index.get(blockId);
+                if (frame != null && !loading[frame])
+                    writeBack(frame);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public void invalidate()
+        {
+            lock.lock();
+            try
+            {
+                for (int i = 0; i < frameBlock.length; i++)
+                {
+                    if (frameBlock[i] == INVALID || loading[i])
+                        continue;
+                    dirty[i] = false;
+                    policy.removed(i);
+                    index.remove(frameBlock[i]);
+                    frameBlock[i] = INVALID;
+                    freeFrames[freeCount++] = i;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public void flush()
+        {
+            lock.lock();
+            try
+            {
+                for (int i = 0; i < frameBlock.length; i++)
+                {
+                    if (frameBlock[i] == INVALID || loading[i])
+                        continue;
+                    writeBack(i);
+                    policy.removed(i);
+                    index.remove(frameBlock[i]);
+                    frameBlock[i] = INVALID;
+                    freeFrames[freeCount++] = i;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        // Claim a frame for a block that is about to be read by a batch, and return the page to
+        // read it into. Returns null if the block is already cached or no frame can be spared.
+        public byte[] reserve(int blockId)
+        {
+            lock.lock();
+            try
+            {
+                if (index.containsKey(blockId))
+                    return null;
+                int frame = (freeCount > 0) ? freeFrames[--freeCount] : evict();
+                if (frame == INVALID)
+                    return null;
+                frameBlock[frame] = blockId;
+                dirty[frame] = false;
+                validFrom[frame] = 0;               // All of it will be by the time loading is cleared.
+                validTo[frame] = blockSize;
+                loading[frame] = true;              // Kept away from the policy until it's filled.
+                index.put(blockId, frame);
+                return pages[frame];
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        // The batch read for a reserved block has completed.
+        public void loaded(int blockId)
+        {
+            lock.lock();
+            try
+            {
+                Integer frame = index.get(blockId);
+                if (frame != null && loading[frame])
+                {
+                    loading[frame] = false;
+                    policy.inserted(frame, blockId);
+                    changed.signalAll();                    // Wake threads waiting for this block.
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        // The batch read for a reserved block failed; give its frame back.
+        public void cancel(int blockId)
+        {
+            lock.lock();
+            try
+            {
+                Integer frame = index.get(blockId);
+                if (frame != null && loading[frame])
+                {
+                    loading[frame] = false;
+                    index.remove(blockId);
+                    frameBlock[frame] = INVALID;
+                    freeFrames[freeCount++] = frame;
+                    changed.signalAll();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        // Find the frame holding blockId. On a miss the block gets a frame with nothing valid
+        // in it; it's only read from the disk once something needs the missing bytes.
+        private int lookup(int blockId)
+        {
+            for (;;)
+            {
+                Integer hit = index.get(blockId);
+                if (hit != null && loading[hit])
+                {
+                    // Someone else's batch is reading it right now.
+                    changed.awaitUninterruptibly();
+                    continue;
+                }
+                if (hit != null)
+                {
+                    policy.accessed(hit);
+                    return hit;
+                }
+
+                int frame = (freeCount > 0) ? freeFrames[--freeCount] : evict();
+                if (frame == INVALID)
+                {
+                    // Every frame is waiting on a batch read.
+                    changed.awaitUninterruptibly();
+                    continue;
+                }
+                frameBlock[frame] = blockId;
+                dirty[frame] = false;
+                validFrom[frame] = 0;
+                validTo[frame] = 0;
+                index.put(blockId, frame);
+                policy.inserted(frame, blockId);
+                return frame;
+            }
+        }
+
+        // Free up a frame, or return INVALID if all of them are being loaded.
+        private int evict()
+        {
+            int frame = policy.victim();
+            if (frame == INVALID)
+                return INVALID;
+            writeBack(frame);
+            index.remove(frameBlock[frame]);
+            frameBlock[frame] = INVALID;
+            return frame;
+        }
+
+        // Read the parts of the page that aren't valid yet, keeping what's been written.
+        private void fill(int frame)
+        {
+            if (validFrom[frame] == 0 && validTo[frame] == blockSize)
+                return;
+            byte data[] = new byte[blockSize];
+            SysLib.rawread(frameBlock[frame], data);
+            System.arraycopy(data, 0, pages[frame], 0, validFrom[frame]);
+            System.arraycopy(data, validTo[frame], pages[frame], validTo[frame], blockSize - validTo[frame]);
+            validFrom[frame] = 0;
+            validTo[frame] = blockSize;
+        }
+
+        private void writeBack(int frame)
+        {
+            if (frameBlock[frame] != INVALID && dirty[frame])
+            {
+                fill(frame);                    // Partial writes still need the rest of the block.
+                SysLib.rawwrite(frameBlock[frame], pages[frame]);
+                dirty[frame] = false;
+            }
+        }
+    }
+
+    // Waits for prefetch batches in the order they were started and marks their blocks loaded.
+    // This can't be left to the DiskQueue thread: a thread holding a shard's lock may be
+    // waiting on the DiskQueue for a read of its own.
+    private class Completer extends Thread
+    {
+        private LinkedList<IOBatch> batches = new LinkedList<IOBatch>();
+        private LinkedList<int[]> blocks = new LinkedList<int[]>();
+
+        public synchronized void add(IOBatch batch, int blockIds[])
+        {
+            batches.add(batch);
+            blocks.add(blockIds);
+            notify();
+        }
+
+        public void run()
+        {
+            for (;;)
+            {
+                IOBatch batch;
+                int blockIds[];
+                synchronized (this)
+                {
+                    while (batches.isEmpty())
+                    {
+                        try { wait(); } catch (InterruptedException e) {}
+                    }
+                    batch = batches.removeFirst();
+                    blockIds = blocks.removeFirst();
+                }
+                finish(blockIds, batch.await());
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.util.*;
+
+// Circular LOOK: sweep upward only. When no request is left above the arm, jump back to the
+// lowest pending block and sweep up again, which gives every track the same wait.
+public class CLOOKDiskPolicy implements DiskSchedulePolicy
+{
+    public int choose(List<DiskRequest> pending, int head)
+    {
+        int above = -1;
+        int lowest = 0;
+        for (int i = 0; i < pending.size(); i++)
+        {
+            int blockId = pending.get(i).blockId;
+            if (blockId >= head && (above < 0 || blockId < pending.get(above).blockId))
+                above = i;
+            if (blockId < pending.get(lowest).blockId)
+                lowest = i;
+        }
+        return (above >= 0) ? above : lowest;
+    }
+}
@@ -0,0 +1,53 @@
+// Second-chance (clock) replacement: a hand sweeps the frames, clearing reference bits,
+// and evicts the first resident frame it finds that hasn't been touched since the last sweep.
+public class ClockPolicy implements EvictionPolicy
+{
+    private boolean resident[];
+    private boolean reference[];
+    private int hand;
+
+    public ClockPolicy(int frames)
+    {
+        resident = new boolean[frames];
+        reference = new boolean[frames];
+        hand = 0;
+    }
+
+    public void inserted(int frame, int blockId)
+    {
+        resident[frame] = true;
+        reference[frame] = true;
+    }
+
+    public void accessed(int frame)
+    {
+        reference[frame] = true;
+    }
+
+    public void removed(int frame)
+    {
+        resident[frame] = false;
+        reference[frame] = false;
+    }
+
+    public int victim()
+    {
+        // At most two sweeps: the first one may only clear reference bits.
+        for (int i = 0; i < resident.length * 2; i++)
+        {
+            int frame = hand;
+            hand = (hand + 1) % resident.length;
+
+            if (!resident[frame])
+                continue;
+            if (reference[frame])
+            {
+                reference[frame] = false; // Second chance.
+                continue;
+            }
+            resident[frame] = false;
+            return frame;
+        }
+        return -1; // Nothing resident.
+    }
+}
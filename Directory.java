@@ -1,101 +1,313 @@
+import java.util.*;
+
 public class Directory
 {
-    private static int maxChars = 30; // max characters of each file name
+    private static int maxChars = 30; // max characters of each file name (one path component)
+
+    public final static short ROOT = 0; // inumber of "/"
+
+    // On disk every inumber has a fixed 64-byte record: name length (short), parent with the top
+    // bit marking directories (short), then the name, one char (2 bytes) at a time. Eight fit in
+    // a block, so a change only rewrites the block holding that one record.
+    public final static int entrySize = 4 + maxChars * 2;
+    public final static int entriesPerBlock = Disk.blockSize / entrySize;
 
     // Directory entries
     private int fsize[];         // each element stores a different file size.
     private char fnames[][];     // each element stores a different file name.
+    private short parent[];      // inumber of the directory each entry lives in
+    private boolean isDir[];     // whether each entry is itself a directory
+
+    // Lookup structures kept alongside fsize/fnames.
+    private HashMap<Short, HashMap<String, Short>> children; // directory -> (name -> inumber)
+    private LinkedHashMap<String, Short> dentries;          // full path -> inumber, least recently used first
+    private short freeSlots[];            // stack of unused inumbers, lowest on top
+    private int freeCount;
+    private BitSet dirtyBlocks;           // blocks of the on-disk table changed since the last save
+    private Inode source;                 // root inode to read the entries from on first use
 
     public Directory(int maxInumber)
     {
         fsize = new int[maxInumber];                   // maxInumber = max files
-        for ( int i = 0; i < maxInumber; i++ ) 
+        for ( int i = 0; i < maxInumber; i++ )
             fsize[i] = 0;                               // all file size initialized to 0
         fnames = new char[maxInumber][maxChars];
+        parent = new short[maxInumber];
+        isDir = new boolean[maxInumber];
         String root = "/";                              // entry(inode) 0 is "/"
         fsize[0] = root.length( );                      // fsize[0] is the size of "/".
         root.getChars( 0, fsize[0], fnames[0], 0 );    // fnames[0] includes "/"
+        parent[0] = ROOT;
+        isDir[0] = true;
+        rebuildIndex();
+        dirtyBlocks = new BitSet();
+        dirtyBlocks.set(0);                             // Nothing on the disk yet.
     }
 
-    public void bytes2directory(byte data[])
+    // A directory kept in root's blocks. Nothing is read until it's first used.
+    public Directory(int maxInumber, Inode root)
     {
-        // assumes data[] received directory information from disk
-        // initializes the Directory instance with this data[]
-        int offset = 0;
+        this(maxInumber);
+        dirtyBlocks.clear();
+        source = root;
+    }
 
-        for (int i = 0; i < fsize.length; i++ , offset += 4) // Store sizes, one at a time.
+    // Recompute the per-directory name tables and the free-slot stack from the entries.
+    private void rebuildIndex()
+    {
+        children = new HashMap<Short, HashMap<String, Short>>();
+        final int limit = fsize.length;             // Room for one path per file; other spellings push out the oldest.
+        dentries = new LinkedHashMap<String, Short>(16, 0.75f, true)
         {
-            SysLib.bytes2int(data, offset);    // Use SysLib's provided int2bytes function.
+            protected boolean removeEldestEntry(Map.Entry<String, Short> eldest)
+            {
+                return size() > limit;
+            }
+        };
+        freeSlots = new short[fsize.length];
+        freeCount = 0;
+        for (int i = fsize.length - 1; i >= 0; i--)
+        {
+            if (fsize[i] == 0)
+                freeSlots[freeCount++] = (short)i;
+            else if (isDir[i] && !children.containsKey((short)i))
+                children.put((short)i, new HashMap<String, Short>());
         }
-
-        for (int i = 0; i < fnames.length; i++, offset += maxChars * 2) // Store names, one at a time.
+        for (short i = 1; i < fsize.length; i++)
         {
-            String fname = new String(data, offset, maxChars * 2);   // String has a built-in conversion function; far easier than converting each char one at a time.
-            fname.getChars(0, fsize[i], fnames[i], 0);
+            if (fsize[i] == 0)
+                continue;
+            if (!children.containsKey(parent[i]))
+                children.put(parent[i], new HashMap<String, Short>()); // Shouldn't happen; keep the file reachable.
+            children.get(parent[i]).put(new String(fnames[i], 0, fsize[i]), i);
         }
     }
 
-    public byte[] directory2bytes()
+    // Read the entries in on first use. Only the blocks the root's length covers are read,
+    // and since inumbers are handed out lowest first, that's about as many as there are files.
+    private void load()
     {
-        // converts and return Directory information into a plain byte array
-        // this byte array will be written back to disk
-        // note: only meaningful directory information should be converted
-        // into bytes.
-        byte[] result = new byte[(fsize.length * maxChars * 2) + (fsize.length * 4)]; //fsize.length == maxInumber, ints are 4 bytes each, chars are 2 bytes each
-        int offset = 0;
+        if (source == null)
+            return;
+        Inode root = source;
+        source = null;
 
-        for (int i = 0; i < fsize.length; i++ , offset += 4) // Store sizes, one at a time.
+        int count = (root.length + Disk.blockSize - 1) / Disk.blockSize;
+        int blocks[] = new int[count];
+        for (int i = 0; i < count; i++)
         {
-            SysLib.int2bytes(fsize[i], result, offset);    // Use SysLib's provided int2bytes function.
+            blocks[i] = root.blockFromSeekPtr(i * Disk.blockSize);
+            if (blocks[i] < 0)
+            {
+                count = i;                              // Shouldn't happen; keep what's there.
+                break;
+            }
         }
+        if (count > 1)
+            BlockIO.load(Arrays.copyOf(blocks, count));
 
-        for (int i = 0; i < fnames.length; i++, offset += maxChars * 2) // Store names, one at a time.
+        byte data[] = new byte[count * Disk.blockSize];
+        byte block[] = new byte[Disk.blockSize];
+        for (int i = 0; i < count; i++)
         {
-            String fname = new String(fnames[i]);   // String has a built-in conversion function; far easier than converting each char one at a time.
-            byte[] bytes = fname.getBytes();        // Uses platform's default character set.
-            System.arraycopy(bytes, 0, result, offset, bytes.length);
+            Journal.read(blocks[i], block);
+            System.arraycopy(block, 0, data, i * Disk.blockSize, Disk.blockSize);
         }
+        bytes2directory(data);
+    }
+
+    private void bytes2directory(byte data[])
+    {
+        // assumes data[] received directory information from disk
+        // initializes the Directory instance with this data[]
+        // Records past the end of data[] are unused.
+        source = null;
+        for (int i = 0; i < fsize.length; i++)
+        {
+            int offset = i / entriesPerBlock * Disk.blockSize + i % entriesPerBlock * entrySize;
+            if (offset + entrySize > data.length)
+            {
+                fsize[i] = 0;
+                fnames[i] = new char[maxChars];
+                parent[i] = ROOT;
+                isDir[i] = false;
+                continue;
+            }
+            fsize[i] = Math.max(0, Math.min(SysLib.bytes2short(data, offset), maxChars)); // Use SysLib's provided bytes2short function.
+            short p = SysLib.bytes2short(data, offset + 2);                  // Parent, with the top bit marking directories.
+            isDir[i] = (p & 0x8000) != 0;
+            parent[i] = (short)(p & 0x7fff);
+            for (int c = 0; c < maxChars; c++)                               // Name, one char (2 bytes) at a time.
+                fnames[i][c] = (char)SysLib.bytes2short(data, offset + 4 + c * 2);
+        }
+        fsize[0] = 1;
+        fnames[0][0] = '/';
+        parent[0] = ROOT;
+        isDir[0] = true;
+        rebuildIndex();
+        dirtyBlocks.clear();
+    }
+
+    // The blocks that changed since the last call, by block number within the directory file,
+    // ready to be written. They count as saved from here on.
+    public synchronized TreeMap<Integer, byte[]> takeDirtyBlocks()
+    {
+        TreeMap<Integer, byte[]> result = new TreeMap<Integer, byte[]>();
+        for (int b = dirtyBlocks.nextSetBit(0); b >= 0; b = dirtyBlocks.nextSetBit(b + 1))
+        {
+            byte data[] = new byte[Disk.blockSize];
+            encodeBlock(b, data, 0);
+            result.put(b, data);
+        }
+        dirtyBlocks.clear();
         return result;
     }
 
-    public short ialloc(String filename)
+    // Saving that block failed; keep it for next time.
+    public synchronized void markDirty(int block)
     {
-        // filename is the one of a file to be created.
-        // allocates a new inode number for this filename
-        short result = 0;
-        for (short s = 0; s < fsize.length; s++)
+        dirtyBlocks.set(block);
+    }
+
+    // Put the records of the block-th block of the table into data[offset..].
+    private void encodeBlock(int block, byte data[], int offset)
+    {
+        for (int e = 0; e < entriesPerBlock; e++, offset += entrySize)
         {
-            if (fsize[s] == 0) {
-                result = s;
-                fsize[s] = filename.length();
-                filename.getChars(0, fsize[s], fnames[s], 0);
+            int i = block * entriesPerBlock + e;
+            if (i >= fsize.length)
                 break;
-            }
+            SysLib.short2bytes((short)fsize[i], data, offset);
+            SysLib.short2bytes((short)(parent[i] | (isDir[i] ? 0x8000 : 0)), data, offset + 2);
+            for (int c = 0; c < maxChars; c++)
+                SysLib.short2bytes((short)fnames[i][c], data, offset + 4 + c * 2);
         }
+    }
+
+    private void changed(int iNumber)
+    {
+        dirtyBlocks.set(iNumber / entriesPerBlock);
+    }
+
+    // Split a path into its components; "/a//b/" and "a/b" both give {"a", "b"}.
+    private static String[] components(String path)
+    {
+        Vector<String> parts = new Vector<String>();
+        StringTokenizer token = new StringTokenizer(path, "/");
+        while (token.hasMoreTokens())
+            parts.add(token.nextToken());
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    // Walk the first count components from the root. Returns -1 if any of them is missing
+    // or a file is used as a directory along the way.
+    private short walk(String[] parts, int count)
+    {
+        short current = ROOT;
+        for (int i = 0; i < count; i++)
+        {
+            HashMap<String, Short> entries = children.get(current);
+            if (entries == null)
+                return -1;                          // Not a directory.
+            Short next = entries.get(parts[i]);
+            if (next == null)
+                return -1;
+            current = next;
+        }
+        return current;
+    }
+
+    public synchronized short ialloc(String filename)
+    {
+        load();
+        // filename is the one of a file to be created.
+        // allocates a new inode number for this filename, or -1 if all are taken,
+        // the name doesn't fit in maxChars, or its parent directory doesn't exist
+        String[] parts = components(filename);
+        if (freeCount == 0 || parts.length == 0 || parts[parts.length - 1].length() > maxChars)
+            return -1;
+
+        short dir = walk(parts, parts.length - 1);
+        if (dir < 0 || !isDir[dir])
+            return -1;
+        String name = parts[parts.length - 1];
+        if (children.get(dir).containsKey(name))
+            return -1;                              // Already there.
+
+        short result = freeSlots[--freeCount];    // O(1): pop a free slot.
+        fsize[result] = name.length();
+        name.getChars(0, fsize[result], fnames[result], 0);
+        parent[result] = dir;
+        isDir[result] = false;
+        children.get(dir).put(name, result);
+        changed(result);
         return result;
     }
 
-    public boolean ifree(short iNumber)
+    // Create a directory; same rules as ialloc.
+    public synchronized short mkdir(String path)
+    {
+        short iNumber = ialloc(path);
+        if (iNumber > 0)
+        {
+            isDir[iNumber] = true;
+            children.put(iNumber, new HashMap<String, Short>());
+            changed(iNumber);
+        }
+        return iNumber;
+    }
+
+    public synchronized boolean ifree(short iNumber)
     {
+        load();
         // deallocates this inumber (inode number)
         // the corresponding file will be deleted.
-        if(iNumber <= 0 || iNumber >= fsize.length)
+        if(iNumber <= 0 || iNumber >= fsize.length || fsize[iNumber] == 0)
             return false;
+        if (isDir[iNumber] && !children.get(iNumber).isEmpty())
+            return false;                           // Only empty directories can go.
+
+        children.get(parent[iNumber]).remove(new String(fnames[iNumber], 0, fsize[iNumber]));
+        children.remove(iNumber);
+        dentries.clear();                           // Any cached path may run through it.
         fsize[iNumber] = 0;
         fnames[iNumber] = new char[maxChars];
+        parent[iNumber] = ROOT;
+        isDir[iNumber] = false;
+        freeSlots[freeCount++] = iNumber;         // Reused by the next ialloc.
+        changed(iNumber);
         return true;
     }
 
-    public short namei(String filename)
+    public synchronized short namei(String filename)
     {
-        // returns the inumber corresponding to this filename
-        for (short s = 0; s < fsize.length; s++)
-        {
-            if (fsize[s] > 0 &&
-                filename.equals(new String(fnames[s], 0, fsize[s]))) // Only create a new String if fsize[s] confirms that a name is present.
-                return s;
-        }
+        load();
+        // returns the inumber corresponding to this filename (a path from the root)
+        Short cached = dentries.get(filename);
+        if (cached != null)
+            return cached;
+
+        String[] parts = components(filename);
+        short iNumber = walk(parts, parts.length);  // One hash lookup per component.
+        if (iNumber >= 0)
+            dentries.put(filename, iNumber);
+        return iNumber;
+    }
 
-        return -1;
+    public synchronized boolean isDirectory(short iNumber)
+    {
+        load();
+        return iNumber >= 0 && iNumber < isDir.length && fsize[iNumber] > 0 && isDir[iNumber];
+    }
+
+    // Names in the directory iNumber, or null if it isn't a directory.
+    public synchronized Vector<String> list(short iNumber)
+    {
+        load();
+        HashMap<String, Short> entries = children.get(iNumber);
+        if (entries == null)
+            return null;
+        Vector<String> names = new Vector<String>(new TreeSet<String>(entries.keySet()));
+        return names;
     }
-}
\ No newline at end of file
+}
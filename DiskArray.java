@@ -0,0 +1,306 @@
+import java.util.*;
+
+// Several Disks put together as one volume, each behind its own DiskQueue.
+// Every Disk is its own thread, so requests that land on different members really are
+// served at the same time.
+//
+// STRIPE (RAID-0): the volume is cut into chunks of chunkBlocks blocks, dealt round robin
+// to the members. A batch of sequential blocks keeps every arm busy at once.
+// MIRROR (RAID-1): every member holds the whole volume. Writes go to all of them and finish
+// when the last one does; each read goes to the member with the shortest queue (the closest
+// arm on a tie), so reads are spread over the replicas.
+//
+// A request on the volume becomes one Part per member it touches. The Parts are what the
+// member queues serve; the last one to finish finishes the original request.
+//
+// A mirror whose members don't start out with the same superblock is resynced by verify( ):
+// one member is copied whole over the others before anything else touches the array. Writes
+// finish only once every member has them, so after a crash each member on its own holds what
+// a single disk would, and any of them will do; a new, blank member next to an old one gets
+// the old one's copy. Members holding different file systems can't be told apart (the format
+// epoch is random, not a count), so the array stays offline until -Dthreados.disk.primary=n
+// says which one wins: DISKn is then copied over the others, whatever they hold.
+public class DiskArray implements BlockDevice
+{
+    public final static int SINGLE = 0;
+    public final static int STRIPE = 1;
+    public final static int MIRROR = 2;
+
+    private int layout;
+    private DiskQueue members[];
+    private int chunkBlocks;            // STRIPE: consecutive blocks kept on one member
+    private int volumeBlocks;           // blocks the volume has; members may have a few more
+    private boolean offline;            // refused by verify( ); every request fails
+
+    // The member a mirror is resynced from if its members differ (-Dthreados.disk.primary=n).
+    public final static int PRIMARY = Integer.getInteger("threados.disk.primary", -1);
+    private final static int RESYNC_BATCH = 64; // blocks copied per round
+
+    public DiskArray(int layout, DiskQueue members[], int chunkBlocks, int volumeBlocks)
+    {
+        this.layout = layout;
+        this.members = members;
+        this.chunkBlocks = Math.max(1, chunkBlocks);
+        this.volumeBlocks = volumeBlocks;
+        offline = false;
+    }
+
+    // Before the array is used: check that a mirror's members agree on block 0, and resync
+    // them if they don't. If there's no telling which member to keep, or the copy fails, the
+    // array goes offline and fails every request from then on. Returns whether the array can
+    // be used.
+    public boolean verify()
+    {
+        if (layout != MIRROR)
+            return true;
+        byte blocks[][] = new byte[members.length][Disk.blockSize];
+        boolean same = true;
+        for (int m = 0; m < members.length; m++)
+        {
+            if (!members[m].read(0, blocks[m]))
+            {
+                offline = true;
+                return false;
+            }
+            same = same && Arrays.equals(blocks[0], blocks[m]);
+        }
+        if (same)
+            return true;
+
+        int source = (PRIMARY >= 0 && PRIMARY < members.length) ? PRIMARY : pickSource(blocks);
+        if (source < 0)
+        {
+            SysLib.cerr("threadOS: the mirrored disks hold different file systems; boot with "
+                        + "-Dthreados.disk.primary=n to copy DISKn over the others\n");
+            offline = true;
+            return false;
+        }
+        SysLib.cerr("threadOS: resyncing the mirror from DISK" + source + "\n");
+        offline = !resync(source);
+        return !offline;
+    }
+
+    // The member to resync from when nobody said: the first holding a file system, provided
+    // every member holding one holds the same one. -1 if they hold different ones, or none do.
+    private int pickSource(byte blocks[][])
+    {
+        int source = -1;
+        for (int m = 0; m < members.length; m++)
+        {
+            int epoch = SuperBlock.formatEpoch(blocks[m], volumeBlocks);
+            if (epoch == 0)
+                continue;                                   // Blank, or not a file system.
+            if (source < 0)
+                source = m;
+            else if (epoch != SuperBlock.formatEpoch(blocks[source], volumeBlocks))
+                return -1;
+        }
+        return source;
+    }
+
+    // Copy the whole volume from member source to every other member, a batch at a time.
+    // Block 0 goes last, once the rest is synced, so a resync cut short leaves the members
+    // still differing there and is done again at the next boot. Returns whether every block
+    // made it.
+    private boolean resync(int source)
+    {
+        for (int first = 1; first < volumeBlocks; first += RESYNC_BATCH)
+        {
+            if (!copy(source, first, Math.min(RESYNC_BATCH, volumeBlocks - first)))
+                return false;
+        }
+        return syncOthers(source) && copy(source, 0, 1) && syncOthers(source);
+    }
+
+    // Copy blocks [first, first + count) from member source to the others.
+    private boolean copy(int source, int first, int count)
+    {
+        DiskRequest reads[] = new DiskRequest[count];
+        for (int i = 0; i < count; i++)
+            reads[i] = new DiskRequest(DiskRequest.READ, first + i, new byte[Disk.blockSize]);
+        members[source].submit(reads);
+        if (!waitForAll(reads))
+            return false;
+
+        for (int m = 0; m < members.length; m++)
+        {
+            if (m == source)
+                continue;
+            DiskRequest writes[] = new DiskRequest[count];
+            for (int i = 0; i < count; i++)
+                writes[i] = new DiskRequest(DiskRequest.WRITE, first + i, reads[i].buffer);
+            members[m].submit(writes);
+            if (!waitForAll(writes))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean syncOthers(int source)
+    {
+        boolean ok = true;
+        for (int m = 0; m < members.length; m++)
+            ok = (m == source || members[m].sync()) && ok;
+        return ok;
+    }
+
+    private static boolean waitForAll(DiskRequest requests[])
+    {
+        boolean ok = true;
+        for (int i = 0; i < requests.length; i++)
+            ok = requests[i].waitFor() && ok;
+        return ok;
+    }
+
+    // "raid0" or "stripe", "raid1" or "mirror"; anything else is a single disk.
+    public static int parseLayout(String name)
+    {
+        if (name != null && (name.equalsIgnoreCase("raid0") || name.equalsIgnoreCase("stripe")))
+            return STRIPE;
+        if (name != null && (name.equalsIgnoreCase("raid1") || name.equalsIgnoreCase("mirror")))
+            return MIRROR;
+        return SINGLE;
+    }
+
+    // How big each of count members has to be for a volume of volumeBlocks.
+    public static int memberBlocks(int layout, int volumeBlocks, int count, int chunkBlocks)
+    {
+        if (layout != STRIPE)
+            return volumeBlocks;
+        chunkBlocks = Math.max(1, chunkBlocks);
+        int chunks = (volumeBlocks + chunkBlocks - 1) / chunkBlocks;
+        return (chunks + count - 1) / count * chunkBlocks;
+    }
+
+    public boolean read(int blockId, byte buffer[])
+    {
+        DiskRequest request = new DiskRequest(DiskRequest.READ, blockId, buffer);
+        submit(new DiskRequest[] { request });
+        return request.waitFor();
+    }
+
+    public boolean write(int blockId, byte buffer[])
+    {
+        DiskRequest request = new DiskRequest(DiskRequest.WRITE, blockId, buffer);
+        submit(new DiskRequest[] { request });
+        return request.waitFor();
+    }
+
+    public boolean sync()
+    {
+        DiskRequest request = new DiskRequest(DiskRequest.SYNC, -1, null);
+        submit(new DiskRequest[] { request });
+        return request.waitFor();
+    }
+
+    // Split each request into Parts and hand every member its share in one go, so the
+    // member's policy can order them together. Synchronized so two batches reach the members
+    // in the same order everywhere; a SYNC stays a barrier on each of them.
+    public synchronized void submit(DiskRequest requests[])
+    {
+        int counts[] = new int[members.length];
+        DiskRequest parts[][] = new DiskRequest[members.length][requests.length];
+        for (int i = 0; i < requests.length; i++)
+        {
+            DiskRequest request = requests[i];
+            if (offline)
+            {
+                request.finish(false);
+            }
+            else if (request.command != DiskRequest.SYNC && (request.blockId < 0 || request.blockId >= volumeBlocks))
+            {
+                // Members are rounded up to whole chunks, so a block past the end of the
+                // volume could still land on one; reject it here, as a Disk would.
+                SysLib.cerr("threadOS: a wrong blockId for " + ((request.command == DiskRequest.READ) ? "read" : "write") + "\n");
+                request.finish(false);
+            }
+            else if (request.command == DiskRequest.SYNC || (request.command == DiskRequest.WRITE && layout == MIRROR))
+            {
+                // Every member takes part: syncs always, and writes to a mirror.
+                Split split = new Split(request, members.length);
+                for (int m = 0; m < members.length; m++)
+                    parts[m][counts[m]++] = new Part(split, request.blockId);
+            }
+            else if (layout == MIRROR)
+            {
+                int member = leastBusy(request.blockId, counts);
+                parts[member][counts[member]++] = new Part(new Split(request, 1), request.blockId);
+            }
+            else
+            {
+                int chunk = request.blockId / chunkBlocks;
+                int member = chunk % members.length;
+                int blockId = chunk / members.length * chunkBlocks + request.blockId % chunkBlocks;
+                parts[member][counts[member]++] = new Part(new Split(request, 1), blockId);
+            }
+        }
+
+        for (int m = 0; m < members.length; m++)
+        {
+            if (counts[m] > 0)
+                members[m].submit(Arrays.copyOf(parts[m], counts[m]));
+        }
+    }
+
+    // The member to read blockId from: fewest requests queued, counting the ones this batch
+    // has already given it, then the arm closest to the block.
+    private int leastBusy(int blockId, int counts[])
+    {
+        int best = 0;
+        int bestLoad = Integer.MAX_VALUE;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int m = 0; m < members.length; m++)
+        {
+            int load = members[m].backlog() + counts[m];
+            int distance = Math.abs(members[m].head() - blockId);
+            if (load < bestLoad || (load == bestLoad && distance < bestDistance))
+            {
+                best = m;
+                bestLoad = load;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // A request on the volume and how many of its Parts are still outstanding. The request
+    // succeeds only if every Part did.
+    private static class Split
+    {
+        private DiskRequest whole;
+        private int remaining;
+        private boolean ok;
+
+        public Split(DiskRequest whole, int parts)
+        {
+            this.whole = whole;
+            remaining = parts;
+            ok = true;
+        }
+
+        public synchronized void partDone(boolean partOk)
+        {
+            ok = ok && partOk;
+            if (--remaining == 0)
+                whole.finish(ok);
+        }
+    }
+
+    // One member's share of a request, with the block number on that member.
+    private static class Part extends DiskRequest
+    {
+        private Split split;
+
+        public Part(Split split, int blockId)
+        {
+            super(split.whole.command, blockId, split.whole.buffer);
+            this.split = split;
+        }
+
+        public void finish(boolean ok)
+        {
+            super.finish(ok);
+            split.partDone(ok);
+        }
+    }
+}
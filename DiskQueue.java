@@ -0,0 +1,151 @@
+import java.util.*;
+
+// Request queue in front of the Disk.
+// The Disk only takes one command at a time, so instead of every thread spinning on it the
+// Kernel hands each RAWREAD/RAWWRITE/SYNC to this thread. It keeps the pending requests,
+// lets a DiskSchedulePolicy pick which one to serve next based on where the arm is, and
+// feeds them to the Disk one after another.
+public class DiskQueue extends Thread implements BlockDevice
+{
+    private Disk disk;
+    private SyncQueue ioQueue;              // where the Disk's completion interrupts arrive
+    private int condFinished;               // the condition the interrupt wakes up
+    private DiskSchedulePolicy policy;
+
+    private LinkedList<DiskRequest> pending;
+    private volatile int head;              // block the arm was last moved to
+    private boolean serving;                // a request is with the Disk right now
+
+    public DiskQueue(Disk disk, SyncQueue ioQueue, int condFinished, DiskSchedulePolicy policy)
+    {
+        this.disk = disk;
+        this.ioQueue = ioQueue;
+        this.condFinished = condFinished;
+        this.policy = policy;
+        pending = new LinkedList<DiskRequest>();
+        head = 0;
+    }
+
+    // Build a scheduling policy from its name: "fifo", "sstf", "scan" or "clook".
+    public static DiskSchedulePolicy newPolicy(String name)
+    {
+        if (name != null && name.equalsIgnoreCase("fifo"))
+            return new FIFODiskPolicy();
+        if (name != null && name.equalsIgnoreCase("sstf"))
+            return new SSTFDiskPolicy();
+        if (name != null && name.equalsIgnoreCase("scan"))
+            return new SCANDiskPolicy();
+        return new CLOOKDiskPolicy();
+    }
+
+    // Blocking requests used by the Kernel; each returns once the Disk has finished.
+    public boolean read(int blockId, byte buffer[])
+    {
+        DiskRequest request = new DiskRequest(DiskRequest.READ, blockId, buffer);
+        submit(request);
+        return request.waitFor();
+    }
+
+    public boolean write(int blockId, byte buffer[])
+    {
+        DiskRequest request = new DiskRequest(DiskRequest.WRITE, blockId, buffer);
+        submit(request);
+        return request.waitFor();
+    }
+
+    public boolean sync()
+    {
+        DiskRequest request = new DiskRequest(DiskRequest.SYNC, -1, null);
+        submit(request);
+        return request.waitFor();
+    }
+
+    // Requests waiting or being served; a DiskArray sends reads to the least busy mirror.
+    public synchronized int backlog()
+    {
+        return pending.size() + (serving ? 1 : 0);
+    }
+
+    public int head()
+    {
+        return head;
+    }
+
+    public synchronized void submit(DiskRequest request)
+    {
+        pending.add(request);
+        notify();
+    }
+
+    // Queue several requests at once so the policy can order them together.
+    public synchronized void submit(DiskRequest requests[])
+    {
+        for (int i = 0; i < requests.length; i++)
+            pending.add(requests[i]);
+        notify();
+    }
+
+    // Take the next request to serve, waiting if there is none.
+    private synchronized DiskRequest next()
+    {
+        while (pending.isEmpty())
+        {
+            try { wait(); } catch (InterruptedException e) {}
+        }
+        serving = true;
+
+        // A SYNC is a barrier: everything queued before it has to reach the disk image first,
+        // so only the requests ahead of the first SYNC are eligible for reordering.
+        if (pending.getFirst().command == DiskRequest.SYNC)
+            return pending.removeFirst();
+
+        int barrier = 0;
+        while (barrier < pending.size() && pending.get(barrier).command != DiskRequest.SYNC)
+            barrier++;
+
+        int chosen = policy.choose(pending.subList(0, barrier), head);
+        return pending.remove(chosen);
+    }
+
+    // Hand one request to the Disk and wait for its interrupt.
+    private boolean serve(DiskRequest request)
+    {
+        boolean accepted;
+        switch (request.command)
+        {
+            case DiskRequest.READ:
+                accepted = disk.read(request.blockId, request.buffer);
+                break;
+            case DiskRequest.WRITE:
+                accepted = disk.write(request.blockId, request.buffer);
+                break;
+            default:
+                accepted = disk.sync();
+        }
+        if (!accepted)
+            return false;   // Bad block number; the Disk has already complained.
+
+        if (request.command != DiskRequest.SYNC)
+            head = request.blockId;
+
+        // We're the Disk's only client, so exactly one interrupt comes back per command. In a
+        // DiskArray every member's interrupt wakes every queue, so keep sleeping until it's ours.
+        while (disk.testAndResetReady() == false)
+            ioQueue.enqueueAndSleep(condFinished);
+        return true;
+    }
+
+    public void run()
+    {
+        for (;;)
+        {
+            DiskRequest request = next();
+            boolean ok = serve(request);
+            synchronized (this)
+            {
+                serving = false;
+            }
+            request.finish(ok);
+        }
+    }
+}
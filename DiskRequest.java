@@ -0,0 +1,75 @@
+import java.util.concurrent.locks.*;
+
+// One pending command for the DiskQueue.
+// The thread that made the request sleeps in waitFor( ) until the DiskQueue thread
+// has had the Disk carry it out and calls finish( ). The wait is on a Condition rather than
+// the object's monitor, so a virtual thread waiting here is parked instead of holding on to
+// the OS thread under it.
+public class DiskRequest
+{
+    public final static int READ = 1;       // Same command codes the Disk uses.
+    public final static int WRITE = 2;
+    public final static int SYNC = 3;
+
+    public final int command;
+    public final int blockId;               // -1 for SYNC
+    public final byte buffer[];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition done = lock.newCondition();
+    private boolean finished;
+    private boolean success;
+
+    public DiskRequest(int command, int blockId, byte buffer[])
+    {
+        this.command = command;
+        this.blockId = blockId;
+        this.buffer = buffer;
+        finished = false;
+        success = false;
+    }
+
+    public void finish(boolean ok)
+    {
+        lock.lock();
+        try
+        {
+            success = ok;
+            finished = true;
+            done.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public boolean isFinished()
+    {
+        lock.lock();
+        try
+        {
+            return finished;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Block until the request has been served; returns whether the Disk accepted it.
+    public boolean waitFor()
+    {
+        lock.lock();
+        try
+        {
+            while (!finished)
+                done.awaitUninterruptibly();
+            return success;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
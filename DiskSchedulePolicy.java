@@ -0,0 +1,11 @@
+import java.util.*;
+
+// Decides which pending request the DiskQueue sends to the Disk next.
+// Called with the DiskQueue locked, so implementations may keep state (e.g. a sweep direction)
+// without locking of their own.
+public interface DiskSchedulePolicy
+{
+    // Return the index in pending of the request to serve, given the block the arm is over.
+    // pending is never empty and holds only READ and WRITE requests.
+    int choose(List<DiskRequest> pending, int head);
+}
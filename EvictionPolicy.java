@@ -0,0 +1,18 @@
+// Replacement policy for one shard of the BufferCache.
+// Frames are numbered 0 .. frames-1 within a shard. The shard tells the policy when a frame
+// is filled, hit or invalidated, and asks it for a victim when no free frame is left.
+// Calls are always made while the shard's lock is held, so policies need no locking of their own.
+public interface EvictionPolicy
+{
+    // A frame has just been loaded with blockId.
+    void inserted(int frame, int blockId);
+
+    // A frame that is already resident was read or written.
+    void accessed(int frame);
+
+    // A frame has been invalidated (flush) and is going back on the free list.
+    void removed(int frame);
+
+    // Choose a resident frame to evict and forget about it.
+    int victim();
+}
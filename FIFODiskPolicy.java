@@ -0,0 +1,10 @@
+import java.util.*;
+
+// First come, first served: the order the Kernel used before the DiskQueue existed.
+public class FIFODiskPolicy implements DiskSchedulePolicy
+{
+    public int choose(List<DiskRequest> pending, int head)
+    {
+        return 0;
+    }
+}
@@ -0,0 +1,89 @@
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Per-thread file descriptor table.
+// The descriptors still live in TCB.ftEnt, because the Scheduler copies that array into a
+// child at exec and closes whatever is left in it at exit. Instead of TCB's synchronized
+// getFd/returnFd, which scan the array, the free descriptors are kept as the clear bits of
+// one word: taking the lowest free fd or giving one back is a single compare-and-set, and
+// the slots themselves are read and written with atomic array accesses. Nothing here locks.
+public class FdTable
+{
+    private final static int FIRST_FD = 3;  // 0, 1 and 2 are stdin, stdout and stderr
+
+    private final static VarHandle SLOT = MethodHandles.arrayElementVarHandle(FileTableEntry[].class);
+
+    // One table per TCB, created the first time the thread opens or uses a file.
+    private static ConcurrentHashMap<TCB, FdTable> tables = new ConcurrentHashMap<TCB, FdTable>();
+
+    private final FileTableEntry ftEnt[];   // the TCB's own array
+    private final AtomicLong used;          // bit fd is set while fd is taken (or doesn't exist)
+
+    private FdTable(FileTableEntry ftEnt[])
+    {
+        this.ftEnt = ftEnt;
+        long bits = (1L << FIRST_FD) - 1;           // Never hand out the standard streams.
+        if (ftEnt.length < 64)
+            bits |= -1L << ftEnt.length;            // Nor anything past the end of the array.
+        for (int fd = FIRST_FD; fd < ftEnt.length && fd < 64; fd++)
+        {
+            if (SLOT.getAcquire(ftEnt, fd) != null)
+                bits |= 1L << fd;                   // Inherited from the parent at exec.
+        }
+        used = new AtomicLong(bits);
+    }
+
+    public static FdTable of(TCB tcb)
+    {
+        return tables.computeIfAbsent(tcb, t -> new FdTable(t.ftEnt));
+    }
+
+    // The thread has exited and the Scheduler has closed its files.
+    public static void forget(TCB tcb)
+    {
+        tables.remove(tcb);
+    }
+
+    // Give e the lowest free descriptor. Returns -1 if the table is full or e is null.
+    public int install(FileTableEntry e)
+    {
+        if (e == null)
+            return -1;
+        for (;;)
+        {
+            long bits = used.get();
+            if (bits == -1L)
+                return -1;                          // Every descriptor is taken.
+            int fd = Long.numberOfTrailingZeros(~bits);
+            if (used.compareAndSet(bits, bits | (1L << fd)))
+            {
+                SLOT.setRelease(ftEnt, fd, e);
+                return fd;
+            }
+        }
+    }
+
+    public FileTableEntry get(int fd)
+    {
+        if (fd < FIRST_FD || fd >= ftEnt.length)
+            return null;
+        return (FileTableEntry)SLOT.getAcquire(ftEnt, fd);
+    }
+
+    // Empty the slot and make fd available again. Returns what was there, or null.
+    public FileTableEntry remove(int fd)
+    {
+        if (fd < FIRST_FD || fd >= ftEnt.length || fd >= 64)
+            return null;
+        FileTableEntry e = (FileTableEntry)SLOT.getAndSet(ftEnt, fd, (FileTableEntry)null);
+        if (e == null)
+            return null;                            // Already closed.
+        long bits;
+        do
+        {
+            bits = used.get();
+        } while (!used.compareAndSet(bits, bits & ~(1L << fd)));
+        return e;
+    }
+}
@@ -1,58 +1,87 @@
 import java.util.*;
+import java.util.concurrent.*;
 
 public class FileStructureTable
 {
-    private Vector<FileTableEntry> table;           // the actual entity of this file table
+    private Set<FileTableEntry> table;              // the actual entity of this file table; O(1) add/remove
     private Directory dir;                          // the root directory 
+    private InodeTable inodes;                      // the in-core inodes shared by all entries
 
-    public FileStructureTable(Directory directory)
+    public FileStructureTable(Directory directory, InodeTable inodeTable)
     {
-        table = new Vector<FileTableEntry>( );
+        table = ConcurrentHashMap.newKeySet( );
         dir = directory;
+        inodes = inodeTable;
     }
 
     // major public methods
     public synchronized FileTableEntry falloc(String filename, String mode)
     {
-        short iNumber = (filename.equals("/") ? 0 : dir.namei(filename));
+        return falloc(filename, mode, (filename.equals("/") ? 0 : dir.namei(filename)));
+    }
+
+    // Same as above for callers that have already looked the name up (-1 = doesn't exist).
+    // The lookup was done without the table's lock, so a file that didn't exist then is looked
+    // up again here: another open may have created it in the meantime.
+    public synchronized FileTableEntry falloc(String filename, String mode, short iNumber)
+    {
         Inode inode;
 
+        if (iNumber < 0)
+        {
+            iNumber = dir.namei(filename);
+            if (iNumber >= 0 && dir.isDirectory(iNumber))
+                return null;                // Made a directory since.
+        }
+
         if (iNumber >= 0) // if the file exists
         {
-            inode = new Inode(iNumber);
+            inode = inodes.acquire(iNumber); // Shared with any other open of this file
             if (inode.flag == Inode.UNUSED)
+            {
                 inode.flag = Inode.USED;
+                inode.dirty = true;
+            }
             else if (inode.flag == Inode.DELETE)
+            {
+                inodes.release(inode);
                 return null;
+            }
         }
         else // iNumber == -1, file doesn't exist
         {      
             iNumber = dir.ialloc(filename); // Create file
-            inode = new Inode();
-            inode.iNumber = iNumber;
+            if (iNumber < 0)
+                return null;                // No free inodes.
+            inode = inodes.allocate(iNumber);
         }
 
-        inode.count++; // Add a reference to this file
-        inode.toDisk(iNumber); // Save the inode to the disk
         FileTableEntry e = new FileTableEntry(inode, iNumber, mode);    // Create a new entry,
-        table.addElement(e);                                            // Store it,
+        table.add(e);                                                   // Store it,
         return e;                                                       // And return it.
     }
 
-    public synchronized boolean ffree(FileTableEntry e)
+    // Drop one thread's reference to e. Threads started by exec share their parent's
+    // entries, so the entry only leaves the table when the last of them closes it.
+    // Doesn't take the table's lock; only falloc needs that, to create files one at a time.
+    public boolean ffree(FileTableEntry e)
     {
-        if (table.removeElement(e))
+        synchronized (e)
         {
-            e.inode.count--;
-            if (e.inode.flag == Inode.READ || e.inode.flag == Inode.WRITE)
-                notify();
-            e.inode.toDisk(e.iNumber);
-            return true;
+            if (e.count > 1)
+            {
+                e.count--;
+                return true;
+            }
+            e.count = 0;
         }
-        return false;
+        if (!table.remove(e))
+            return false;           // Already freed.
+        inodes.release(e.inode);    // Drop its reference to the inode.
+        return true;
     }
 
-    public synchronized boolean fempty()
+    public boolean fempty()
     {
         return table.isEmpty();  // return if table is empty 
     }                            // should be called before starting a format
@@ -5,8 +5,7 @@
     private SuperBlock superBlock;
     private Directory directory;
     private FileStructureTable fileTable;
-
-    private TCB myTcb;
+    private InodeTable inodes;
 
     public static final int ERROR = -1;
 
@@ -14,287 +13,825 @@
     public static final int CUR = 1;
     public static final int END = 2;
 
+    // Blocks reserved ahead for each open file when it grows (-Dthreados.fs.prealloc=n).
+    public static final int PREALLOC_WINDOW = Math.max(1, Integer.getInteger("threados.fs.prealloc", 8));
+
+    // Appends sit in memory and get their blocks at close or sync (-Dthreados.fs.delalloc=false to allocate on write).
+    public static final boolean DELAYED_ALLOCATION = Boolean.parseBoolean(System.getProperty("threados.fs.delalloc", "true"));
+
+    // Most blocks read ahead of a sequential reader (-Dthreados.fs.readahead=n, 0 turns it off).
+    public static final int READAHEAD_MAX = Math.max(0, Integer.getInteger("threados.fs.readahead", 16));
+
     public FileSystem(int blocks)
     {
-        superBlock = new SuperBlock(blocks);
-        directory = new Directory(superBlock.totalInodes);
-        fileTable = new FileStructureTable(directory);
+        // Finish a metadata transaction the last run committed but may not have written home.
+        Journal.replay();
 
-        // Open the base directory file from the disk.
-        FileTableEntry dir = open("/", "r");
+        superBlock = new SuperBlock(blocks);
 
-        // Check for data in the directory.
-        int dirSize = dir.inode.length;
-        if (dirSize > 0)
+        if (superBlock.formatted)
         {
-            // If data has been stored, read it in.
-            byte[] data = new byte[dirSize];
-            readFromFtEnt(dir, data);
-            directory.bytes2directory(data);
+            // There was no file system on the disk; start with an empty one.
+            startEmpty();
+            return;
         }
-        dir.inode.flag = Inode.USED;
-        fileTable.ffree(dir);
+        inodes = new InodeTable(superBlock);
+
+        // The base directory lives in the root's blocks; it's read when first needed.
+        Inode root = inodes.acquire((short)0); // Kept open for as long as the file system is up.
+        root.flag = Inode.USED;
+        directory = new Directory(superBlock.totalInodes, root);
+        fileTable = new FileStructureTable(directory, inodes);
     }
 
     public FileTableEntry open(String filename, String mode)
     {
         //Check if it is a new file before falloc because falloc will create a
         //new file if one does not exist
-        boolean newFile = directory.namei(filename) == -1;
-        FileTableEntry fte = fileTable.falloc(filename, mode);
+        short iNumber = (filename.equals("/") ? 0 : directory.namei(filename));
+        boolean newFile = iNumber == -1;
+        if (newFile && mode.equals("r"))
+            return null; // Nothing to read; don't create it.
+        if (iNumber >= 0 && directory.isDirectory(iNumber))
+            return null; // Directories, "/" included, are only read through readdir.
+
+        FileTableEntry fte = fileTable.falloc(filename, mode, iNumber);
+        if (fte == null)
+            return null; // Out of inodes, or the file is being deleted.
+
+        // Truncating or giving a new file its first block changes the inode; keep readers
+        // and writers of the same file out while that happens.
+        fte.inode.lock.writeLock().lock();
+        try
+        {
+            // Can't use a switch statement because Strings compare diferently.
+            if (mode.equals("a"))
+            {
+                fte.seekPtr = fte.inode.length; // Can't use seek in open, because no fd exists yet.
+            }
+            else if (mode.equals("w"))
+            {
+                fte.seekPtr = 0;
+                deallocAllBlocks(fte.inode);
+                newFile = true;
+            }
+            else //mode.equals("w+") or "r"
+            {
+                fte.seekPtr = 0;
+            }
+
+            // Another open may have created the file first and already given it a block.
+            newFile = newFile && fte.inode.lastBlock() == ERROR;
+
+            if (newFile && !DELAYED_ALLOCATION) // Otherwise the first write takes care of it.
+            {
+                // Claim a free block for the new direct block.
+                int directBlock = claimBlockFor(fte);
+                if (directBlock == ERROR)
+                {
+                    return null; // No free blocks available.
+                }
+
+                fte.inode.addBlock(directBlock);
+                fte.inode.dirty = true; // Written back with the rest of its inode block on sync.
+
+                // Start it out as zeros, so writing part of it never reads the old contents.
+                BlockIO.write(directBlock, 0, new byte[0], 0, 0, true);
+            }
+        }
+        finally
+        {
+            fte.inode.lock.writeLock().unlock();
+        }
+        return fte;
+    }
+
+    public int read(int fd, byte[] buffer)
+    {
+        FileTableEntry fte = convertFdToFtEnt(fd);
+        if(fte == null)
+        {
+            return ERROR;
+        }
+
+        // Threads sharing this entry take turns, since they share its seek pointer. Entries of
+        // the same file only share the inode's read lock, so readers run side by side, and
+        // different files don't wait on each other at all.
+        fte.lock.lock();
+        try
+        {
+            fte.inode.lock.readLock().lock();
+            try
+            {
+                if (fte.inode.flag == Inode.UNUSED || fte.inode.flag == Inode.DELETE)
+                {
+                    return ERROR; // Y u do dis.
+                }
+                int position = fte.seekPtr;
+                int bytesRead = readFromFtEnt(fte, buffer);
+                if (bytesRead > 0)
+                {
+                    readAhead(fte, position, bytesRead);
+                }
+                return bytesRead;
+            }
+            finally
+            {
+                fte.inode.lock.readLock().unlock();
+            }
+        }
+        finally
+        {
+            fte.lock.unlock();
+        }
+    }
+
+    // Read from the entry's seek pointer and move it past what was read.
+    private int readFromFtEnt(FileTableEntry fte, byte[] buffer)
+    {
+        int bytesRead = readAt(fte.inode, fte.seekPtr, buffer, 0, buffer.length);
+        if (bytesRead > 0)
+        {
+            fte.seekPtr += bytesRead;
+        }
+        return bytesRead;
+    }
 
-        // Can't use a switch statement because Strings compare diferently.
-        if (mode.equals("a"))
+    // Called after each read through the entry. A read that starts where the last one ended
+    // doubles the read-ahead window, anything else halves it; then the blocks in the window
+    // past this read that haven't been asked for yet are queued up without waiting for them.
+    private void readAhead(FileTableEntry fte, int position, int bytesRead)
+    {
+        if (position == fte.raNext)
         {
-            fte.seekPtr = fte.inode.length; // Can't use seek in open, because no fd exists yet.
+            fte.raWindow = Math.min(Math.max(1, fte.raWindow * 2), READAHEAD_MAX);
         }
-        else if (mode.equals("w"))
+        else
         {
-            fte.seekPtr = 0;
-            deallocAllBlocks(fte.inode);
-            newFile = true;
+            fte.raWindow /= 2;
+            fte.raEnd = 0; // Somewhere else now; what was read ahead doesn't count.
         }
-        else if (mode.equals("w+"))
+        fte.raNext = position + bytesRead;
+        if (fte.raWindow == 0)
         {
-            fte.seekPtr = 0;
+            return;
         }
-        else //mode.equals("r")
+
+        int fileBlocks = (fte.inode.length + Disk.blockSize - 1) / Disk.blockSize;
+        int next = (fte.raNext + Disk.blockSize - 1) / Disk.blockSize; // first block not read yet
+        int from = Math.max(next, fte.raEnd);
+        int to = Math.min(fileBlocks, next + fte.raWindow);
+        if (from >= to)
         {
-            if (newFile) 
-                return null;  
-            fte.seekPtr = 0;
+            return;
         }
-        
-        if (newFile)
+
+        int[] blocks = new int[to - from];
+        for (int i = 0; i < blocks.length; i++)
         {
-            // Claim a free block for the new direct block.
-            short directBlock = superBlock.claimBlock();
-            if (directBlock == ERROR)
+            blocks[i] = fte.inode.blockFromSeekPtr((from + i) * Disk.blockSize);
+            if (blocks[i] == ERROR)
             {
-                return null; // No free blocks available.
+                return;
             }
-
-            fte.inode.addBlock(directBlock);
-            fte.inode.toDisk(fte.iNumber); 
         }
-        return fte;
+        BlockIO.prefetch(blocks);
+        fte.raEnd = to;
     }
 
-    public synchronized int read(int fd, byte[] buffer)
+    // Read up to length bytes at position into buffer[offset..]. Each piece is copied
+    // straight out of the cached block; nothing is staged in between.
+    private int readAt(Inode inode, int position, byte[] buffer, int offset, int length)
     {
-        FileTableEntry fte = convertFdToFtEnt(fd);
-        if(fte == null)
+        // Work out every block the read touches up front,
+        int wanted = Math.min(length, inode.length - position);
+        if (wanted <= 0)
         {
-            return ERROR;
+            return 0;
         }
+        int firstBlock = position / Disk.blockSize;
+        int lastBlock = (position + wanted - 1) / Disk.blockSize;
+        int[] blocks = new int[lastBlock - firstBlock + 1];
 
-        boolean loop = true;
-        int bytesRead = ERROR;
-        fte.count++;
+        int allocated = 0;
 
-        while (loop)
+        for (int i = 0; i < blocks.length; i++)
         {
-            switch(fte.inode.flag)
+            blocks[i] = inode.blockFromSeekPtr((firstBlock + i) * Disk.blockSize);
+
+            // Error check; appended data may not have a block yet.
+            if (blocks[i] != ERROR)
             {
-                case Inode.WRITE:
-                    try { wait(); } catch (InterruptedException e) {} // Wait for whatever's writing to stahp.
-                    break; // Let's try this again.
-                case Inode.UNUSED:
-                case Inode.DELETE: // Y u do dis.
-                    loop = false;
-                    break;
-                default: // UNUSED, USED, READ
-                    // Flag block as read so other threads don't interfere.
-                    fte.inode.flag = Inode.READ;
+                allocated++;
+            }
+            else if (inode.pendingPage(firstBlock + i) == null)
+            {
+                return ERROR;
+            }
+        }
 
-                    bytesRead = readFromFtEnt(fte, buffer);
+        // Fetch the ones that aren't cached in one batch, so the disk can serve them back to back,
+        byte[][] pages = new byte[blocks.length][]; // without the cache, the blocks read whole
+        if (allocated > 1)
+        {
+            int[] onDisk = new int[allocated];
+            for (int i = 0, j = 0; i < blocks.length; i++)
+            {
+                if (blocks[i] != ERROR)
+                {
+                    onDisk[j++] = blocks[i];
+                }
+            }
+            if (BlockIO.getMode() == BlockIO.CACHED)
+            {
+                if (BlockIO.load(onDisk) == ERROR)
+                {
+                    return ERROR;
+                }
+            }
+            else
+            {
+                // There's no cache to keep them in, so the batch reads them into pages of our own.
+                byte[][] data = new byte[allocated][Disk.blockSize];
+                if (BlockIO.read(onDisk, data) == ERROR)
+                {
+                    return ERROR;
+                }
+                for (int i = 0, j = 0; i < blocks.length; i++)
+                {
+                    if (blocks[i] != ERROR)
+                    {
+                        pages[i] = data[j++];
+                    }
+                }
+            }
+        }
 
-                    // Decrement count, if necessary
+        // Then copy them out piece by piece.
+        int bytesRead = 0;
+        for (int i = 0; bytesRead < wanted; i++)
+        {
+            int blockOffset = (position + bytesRead) % Disk.blockSize;
+            int bytesToRead = Math.min(Disk.blockSize - blockOffset, wanted - bytesRead);
 
-                    fte.inode.flag = Inode.USED;                    
-                    if (fte.count > 0) notifyAll(); // If there's another child thread waiting, wake it up
-                    loop = false;
+            byte[] page = inode.pendingPage(firstBlock + i);
+            if (page == null)
+            {
+                page = pages[i];
+            }
+            if (page != null)
+            {
+                System.arraycopy(page, blockOffset, buffer, offset + bytesRead, bytesToRead);
+            }
+            else if (BlockIO.read(blocks[i], blockOffset, buffer, offset + bytesRead, bytesToRead) == ERROR)
+            {
+                return ERROR;
             }
+            bytesRead += bytesToRead;
         }
 
-        fte.count--;               
         return bytesRead;
     }
 
-    private synchronized int readFromFtEnt(FileTableEntry fte, byte[] buffer)
+    // Read at an explicit position without touching the seek pointer. Threads sharing the
+    // entry don't wait on each other; only writers of the file hold them up.
+    public int pread(int fd, byte[] buffer, int offset, int length, int position)
     {
-        byte[] data = new byte[512];
-        int bytesRead = 0;
-        int readLength = 0;
-        int cpyStart = 0;
-        int iteration = 0;
-
-        while (bytesRead < buffer.length && fte.seekPtr < fte.inode.length) // While there's space in the buffer to read into,
+        FileTableEntry fte = convertFdToFtEnt(fd);
+        if (fte == null || offset < 0 || length < 0 || offset + length > buffer.length || position < 0)
         {
-            iteration++;
-            int block = fte.inode.blockFromSeekPtr(fte.seekPtr);
+            return ERROR;
+        }
 
-            // Error check,
-            if (block == ERROR)
+        fte.inode.lock.readLock().lock();
+        try
+        {
+            if (fte.inode.flag == Inode.UNUSED || fte.inode.flag == Inode.DELETE)
             {
                 return ERROR;
             }
+            return readAt(fte.inode, position, buffer, offset, length);
+        }
+        finally
+        {
+            fte.inode.lock.readLock().unlock();
+        }
+    }
 
-            //Read from disk,
-            if (SysLib.rawread(block, data) == ERROR)
+    public int write(int fd, byte[] buffer)
+    {
+        FileTableEntry fte = convertFdToFtEnt(fd);
+        if(fte == null)
+        {
+            return ERROR;
+        }
+
+        if(fte.mode.equals("r"))
+        {
+            return ERROR;
+        }
+
+        // One writer per file at a time, and no readers while it writes.
+        fte.lock.lock();
+        try
+        {
+            fte.inode.lock.writeLock().lock();
+            try
+            {
+                if (fte.inode.flag == Inode.UNUSED || fte.inode.flag == Inode.DELETE)
+                {
+                    return ERROR;
+                }
+
+                int bytesWritten = writeAt(fte, fte.seekPtr, buffer, 0, buffer.length);
+                if (bytesWritten > 0)
+                {
+                    fte.seekPtr += bytesWritten;
+                }
+                return bytesWritten;
+            }
+            finally
+            {
+                fte.inode.lock.writeLock().unlock();
+            }
+        }
+        finally
+        {
+            fte.lock.unlock();
+        }
+    }
+
+    // Write buffer[offset..offset+length) at position, growing the file as needed.
+    // The caller holds the inode's write lock, and position is at most the file's length.
+    // Returns how much was written: less than length if the file reached its largest size or
+    // the disk filled up on the way, ERROR if nothing could be.
+    private int writeAt(FileTableEntry fte, int position, byte[] buffer, int offset, int length)
+    {
+        int block;
+        int bytesWritten = 0;
+
+        if (length > Inode.maxBlocks * Disk.blockSize - position)
+        {
+            length = Inode.maxBlocks * Disk.blockSize - position; // As much as still fits.
+            if (length <= 0)
             {
                 return ERROR;
             }
+        }
 
-            int offset = fte.seekPtr % Disk.blockSize;
-            int bytesAvailable = Disk.blockSize - offset;
+        while (bytesWritten < length)
+        {
+            int seekPtr = position + bytesWritten;
+            int seekBlock = seekPtr / Disk.blockSize;
+            int blockOffset = seekPtr % Disk.blockSize;
+            int writeLength = Math.min(length - bytesWritten, Disk.blockSize - blockOffset);
+            block = fte.inode.blockFromSeekPtr(seekPtr);
+
+            // Appending: keep the data in memory and allocate later, if we can.
+            byte[] page = fte.inode.pendingPage(seekBlock);
+            if (block == ERROR && page == null && DELAYED_ALLOCATION)
+            {
+                page = addPendingPage(fte.inode, seekBlock);
+            }
+            if (page != null)
+            {
+                System.arraycopy(buffer, offset + bytesWritten, page, blockOffset, writeLength);
+                bytesWritten += writeLength;
+                continue;
+            }
 
-            // If last block isn't entirely full, dont read all of it.
-            int remainingBytes = fte.inode.length - fte.seekPtr;
-            boolean lastBlock = remainingBytes <= bytesAvailable;
-            readLength = (lastBlock ? remainingBytes : bytesAvailable);
+            boolean fresh = block == ERROR;
+            if(fresh) // If no block has been allocated in the next slot, go make one.
+            {
+                // Whatever is pending goes first, so blocks are added to the inode in file order.
+                if (allocatePending(fte.inode) == ERROR)
+                {
+                    break;
+                }
+                block = addBlockFor(fte, seekBlock);
+                if (block == ERROR)
+                {
+                    break; // Out of space.
+                }
+            }
 
-            int bytesToRead = (buffer.length - bytesRead) < readLength ? (buffer.length - bytesRead) : readLength;
+            // Write one block from the buffer. If there's less than a block left to write in the buffer, just fill the remaining space.
+            // Neither a fresh block nor one being overwritten whole has to be read first.
+            if (BlockIO.write(block, blockOffset, buffer, offset + bytesWritten, writeLength, fresh) == ERROR)
+            {
+                break;
+            }
 
-            System.arraycopy(data, offset, buffer, cpyStart, bytesToRead);
+            // Next contestant.
+            bytesWritten += writeLength;
+        }
 
-            bytesRead += bytesToRead;
-            fte.seekPtr += bytesToRead;
-            cpyStart += bytesToRead;
+        // Written past EOF? File has grown; update length.
+        if (position + bytesWritten > fte.inode.length)
+        {
+            fte.inode.length = position + bytesWritten;
+            fte.inode.dirty = true;
         }
+        return (bytesWritten > 0 || length == 0) ? bytesWritten : ERROR;
+    }
 
-        return bytesRead;
+    // Give the file its seekBlock-th block, which comes right after its last one, along with
+    // any index blocks it needs first. Returns the block, or ERROR if the disk is full.
+    private int addBlockFor(FileTableEntry fte, int seekBlock)
+    {
+        for (int n = fte.inode.indexBlocksFor(seekBlock); n > 0; n--)
+        {
+            int index = claimBlockFor(fte);
+            if (index == ERROR)
+            {
+                return ERROR;
+            }
+            fte.inode.addIndexBlock(index);
+        }
+
+        int block = claimBlockFor(fte);
+        if (block != ERROR && fte.inode.addBlock(block) == ERROR)
+        {
+            superBlock.returnBlock(block); // Shouldn't happen: writeAt stops at maxBlocks.
+            return ERROR;
+        }
+        return block;
     }
 
-    public synchronized int write(int fd, byte[] buffer)
+    // Write at an explicit position without touching the seek pointer.
+    public int pwrite(int fd, byte[] buffer, int offset, int length, int position)
     {
         FileTableEntry fte = convertFdToFtEnt(fd);
-        if(fte == null)
+        if (fte == null || fte.mode.equals("r"))
         {
             return ERROR;
         }
-
-        if(fte.mode.equals("r"))
+        if (offset < 0 || length < 0 || offset + length > buffer.length || position < 0)
         {
             return ERROR;
         }
 
-        int bytesWritten = ERROR;
-        fte.count++;
-        boolean loop = true;
+        fte.inode.lock.writeLock().lock();
+        try
+        {
+            if (fte.inode.flag == Inode.UNUSED || fte.inode.flag == Inode.DELETE)
+            {
+                return ERROR;
+            }
+            if (position > fte.inode.length)
+            {
+                return ERROR; // Files can't have holes.
+            }
+            return writeAt(fte, position, buffer, offset, length);
+        }
+        finally
+        {
+            fte.inode.lock.writeLock().unlock();
+        }
+    }
 
-        while (loop)
+    public int close(int fd)
+    {
+        FileTableEntry fte = convertFdToFtEnt(fd);
+        if(fte == null)
         {
-            switch(fte.inode.flag)
+            return ERROR; // UNUSED, DELETE
+        }
+        return close(fte);
+    }
+
+    // Close an entry the caller has already taken out of its fd table.
+    public int close(FileTableEntry fte)
+    {
+        int allocated;
+
+        // If another thread is reading or writing through this entry, wait for it to finish,
+        // then hand back preallocated blocks the file never used.
+        fte.lock.lock();
+        try
+        {
+            fte.inode.lock.writeLock().lock(); // pwrite claims blocks without the entry's lock.
+            try
             {
-                case Inode.WRITE:
-                case Inode.READ:
-                    // Inode occupied; can't write.
-                    try { wait(); } catch (InterruptedException e){}
-                    break; // Let's try this again.
-                case Inode.DELETE:
-                case Inode.UNUSED:
-                    loop = false;
-                    break;
-                default: // USED
-                    // Flag inode for writing.
-                    fte.inode.flag = Inode.WRITE;
+                releaseReservation(fte);
+                allocated = allocatePending(fte.inode); // Give whatever was appended its blocks.
+            }
+            finally
+            {
+                fte.inode.lock.writeLock().unlock();
+            }
+        }
+        finally
+        {
+            fte.lock.unlock();
+        }
 
-                    bytesWritten = writeFromFtEnt(fte, buffer);
+        // Flag and release the file. If the appended data couldn't get its blocks, it stays in
+        // memory with the inode for the next sync to try again, but the caller hears about it.
+        boolean freed = fileTable.ffree(fte);
+        synchronized (this)
+        {
+            notifyAll(); // A delete may be waiting for the last close.
+        }
+        return (freed && allocated != ERROR) ? 0 : ERROR;
+    }
 
+    // Pick the next block for a growing file. Blocks come out of the entry's reserved run;
+    // when that's used up, a new run of the entry's window is reserved right after the file's
+    // last block (or after its inode block for an empty file), so sequentially written files
+    // end up on consecutive blocks and tracks. The run is only held in memory; each block
+    // is marked used in the bitmap when it's handed out.
+    private int claimBlockFor(FileTableEntry fte)
+    {
+        if (fte.reserveCount == 0)
+        {
+            int last = fte.inode.lastBlock();
+            int goal = (last > 0) ? last + 1 : Inode.blockOf(fte.iNumber) + 1;
 
-                    // Seek ptr past EOF? File has grown; update length.
-                    if (fte.seekPtr >= fte.inode.length)
-                    {
-                        // Seek ptr is at end of file, becomes new length.
-                        fte.inode.length = fte.seekPtr;
-                        fte.inode.toDisk(fte.iNumber);
-                    }
+            int start = superBlock.holdRun(goal, fte.window);
+            if (start == ERROR)
+            {
+                return superBlock.claimBlock(goal); // No run that long left; take anything.
+            }
+            fte.reserveStart = start;
+            fte.reserveCount = fte.window;
+        }
+        fte.reserveCount--;
+        int block = fte.reserveStart++;
+        if (!superBlock.claimHeld(block))
+        {
+            releaseReservation(fte); // The hold is gone (a format dropped it); so is the run.
+            return ERROR;
+        }
+        return block;
+    }
+
+    private void releaseReservation(FileTableEntry fte)
+    {
+        while (fte.reserveCount > 0)
+        {
+            superBlock.releaseHeld(fte.reserveStart++);
+            fte.reserveCount--;
+        }
+    }
 
-                    fte.inode.flag = Inode.USED;
-                    if (fte.count > 0) notifyAll(); // Notify waiting threads, if they exist.
-                    loop = false;
+    // Start a page in memory for the next block of the file, setting a free block aside for it
+    // (and for the index blocks it's the first block of, if any). Returns null if
+    // the disk is full, the file can't get any bigger, or fileBlock doesn't directly follow the
+    // file's last block.
+    private byte[] addPendingPage(Inode inode, int fileBlock)
+    {
+        if (inode.pending.isEmpty())
+        {
+            if (fileBlock > 0 && inode.blockFromSeekPtr((fileBlock - 1) * Disk.blockSize) == ERROR)
+            {
+                return null;
             }
+            inode.pendingFirst = fileBlock;
+        }
+        else if (fileBlock != inode.pendingFirst + inode.pending.size())
+        {
+            return null;
+        }
+        if (fileBlock >= Inode.maxBlocks)
+        {
+            return null; // No pointer left for it.
+        }
+
+        int needed = 1 + inode.indexBlocksFor(fileBlock);
+        if (!superBlock.reserve(needed))
+        {
+            return null;
         }
+        inode.pendingReserved += needed;
 
-        fte.count--;
-        return bytesWritten;
+        byte[] page = new byte[Disk.blockSize];
+        inode.pending.add(page);
+        return page;
     }
 
-    private synchronized int writeFromFtEnt(FileTableEntry fte, byte[] buffer)
+    // Allocate blocks for everything appended to the file since the last time, as one run
+    // right after its last block where possible, and write the pages out through the cache.
+    // The index blocks the new blocks need are part of the run, each just ahead of the first
+    // block it points at. The blocks come out of the reservation addPendingPage made, so
+    // nothing else can have taken them. Should they run out anyway, the pages left without a
+    // block stay pending, still readable, and ERROR is returned. The caller holds the inode's
+    // write lock.
+    private int allocatePending(Inode inode)
     {
-        short block;
-        int bytesWritten = 0;
-        int blockOffset = fte.seekPtr % Disk.blockSize;
-        byte[] data = new byte[Disk.blockSize];
-        int iteration = 0;
+        int count = inode.pending.size();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        int last = inode.lastBlock();
+        int goal = (last > 0) ? last + 1 : Inode.blockOf(inode.iNumber) + 1;
 
-        while (bytesWritten < buffer.length)
+        int total = count;
+        for (int i = 0; i < count; i++)
         {
-            iteration++;
-            block = fte.inode.blockFromSeekPtr(fte.seekPtr);
+            total += inode.indexBlocksFor(inode.pendingFirst + i);
+        }
+        int start = superBlock.claimReserved(goal, total);
+        int next = start;               // the next block of the run to hand out
+        if (start != ERROR)
+        {
+            inode.pendingReserved -= total;
+        }
 
-            if(block == ERROR) // If no block has been allocated in the next slot, go make one.
+        int done = 0;
+        while (done < count)
+        {
+            // The index blocks this one needs, then its own.
+            int[] blocks = new int[1 + inode.indexBlocksFor(inode.pendingFirst + done)];
+            int got = 0;
+            while (got < blocks.length)
             {
-                int seekBlock = fte.seekPtr / Disk.blockSize;
-                if(seekBlock >= fte.inode.directSize && fte.inode.indirect <= 0)
+                blocks[got] = (start != ERROR) ? next++ : superBlock.claimReserved(goal, 1); // No run that long left; take anything.
+                if (blocks[got] == ERROR)
                 {
-                    short index = superBlock.claimBlock();
-                    if (index == ERROR)
-                    {
-                        return ERROR;
-                    }
-                    fte.inode.indirect = index;
-
+                    break;
                 }
+                if (start == ERROR)
+                {
+                    inode.pendingReserved--;
+                }
+                goal = blocks[got++] + 1;
+            }
 
-                block = superBlock.claimBlock();
-                if (block == ERROR)
+            if (got < blocks.length)
+            {
+                for (int i = 0; i < got; i++)
                 {
-                    return ERROR;
+                    superBlock.unclaimReserved(blocks[i]);
+                    inode.pendingReserved++;
                 }
-                fte.inode.addBlock(block);
+                break;
             }
+            for (int i = 0; i < got - 1; i++)
+            {
+                inode.addIndexBlock(blocks[i]);
+            }
+            int block = blocks[got - 1];
+            if (inode.addBlock(block) == ERROR) // Shouldn't happen: addPendingPage stops at maxBlocks.
+            {
+                superBlock.unclaimReserved(block);
+                inode.pendingReserved++;
+                break;
+            }
+            BlockIO.write(block, 0, inode.pending.elementAt(done), 0, Disk.blockSize, true);
+            done++;
+        }
+        while (start != ERROR && next < start + total) // Left over when it stopped early.
+        {
+            superBlock.unclaimReserved(next++);
+            inode.pendingReserved++;
+        }
 
+        if (done > 0)
+        {
+            inode.pending.subList(0, done).clear();
+            inode.pendingFirst += done;
+            inode.dirty = true;
+        }
+        if (!inode.pending.isEmpty())
+        {
+            return ERROR;
+        }
+        superBlock.unreserve(inode.pendingReserved); // Whatever wasn't needed after all.
+        inode.pendingReserved = 0;
+        return 0;
+    }
 
+    // Write back in-core metadata; the Kernel calls this before syncing the disk.
+    // Returns ERROR if some appended data couldn't be given blocks; the rest is still written.
+    public synchronized int sync()
+    {
+        int result = stageMetadata();
+        Journal.commit(); // All of it goes to the disk as one transaction.
+        return result;
+    }
 
-            // Variable used multiple times; copy to local to prevent excess aritmetic.
-            int remainingBytes = buffer.length - bytesWritten;
-    
-            // Load the block,
-            SysLib.rawread(block, data);
+    // Set up the in-core tables for a freshly formatted disk and write out its metadata: the
+    // superblock, the bitmap, the root's inode and the first directory block. A new file
+    // system has nothing to protect yet, so they skip the log.
+    private synchronized void startEmpty()
+    {
+        directory = new Directory(superBlock.totalInodes);
+        inodes = new InodeTable(superBlock);
+        fileTable = new FileStructureTable(directory, inodes);
+        newRoot();
+        stageMetadata();
+        Journal.applyInPlace();
+    }
 
-            // Write one block from the buffer. If there's less than a block left to write in the buffer, just fill the remaining space.
-            int writeLength = ((remainingBytes < (Disk.blockSize - blockOffset)) ? remainingBytes : (Disk.blockSize - blockOffset));
-            System.arraycopy(buffer, bytesWritten, data, blockOffset, writeLength);
-            
-            // Save the block,
-            SysLib.rawwrite(block, data);
+    // Hand every metadata change since the last sync to the journal. Returns ERROR if some
+    // file's appended data couldn't be given blocks.
+    private int stageMetadata()
+    {
+        int result = 0;
 
-            // Next contestant.
-            bytesWritten += writeLength;
-            fte.seekPtr += writeLength;
-            // Block offset starts at 0 for new blocks.
-            blockOffset = 0;
+        // Appended data gets its blocks first, so the inodes written below point at them.
+        for (Inode inode : inodes.withPending())
+        {
+            inode.lock.writeLock().lock();
+            try
+            {
+                if (allocatePending(inode) == ERROR)
+                {
+                    result = ERROR;
+                }
+            }
+            finally
+            {
+                inode.lock.writeLock().unlock();
+            }
         }
-        return bytesWritten;
+        saveDirectory();
+        inodes.sync();
+        superBlock.sync();
+        return result;
     }
 
-    public synchronized int close(int fd)
+    // Give "/" a fresh inode; whatever the disk has at inode 0 belonged to the old file system.
+    // The file system keeps it open, so it's never dropped from the InodeTable.
+    private void newRoot()
     {
-        FileTableEntry fte = convertFdToFtEnt(fd);
-        if(fte == null)
+        inodes.allocate((short)0);
+    }
+
+    // Write the directory blocks that changed since the last sync into the root's blocks.
+    // Like the rest of the metadata they go through the journal, so they're committed
+    // together with the inodes they name.
+    private void saveDirectory()
+    {
+        TreeMap<Integer, byte[]> changed = directory.takeDirtyBlocks();
+        if (changed.isEmpty())
         {
-            return ERROR; // UNUSED, DELETE
+            return;
         }
+        Inode root = inodes.get((short)0);
 
-        // If the file has an open on it, wait for it to finish.
-        while(fte.count > 1 && (fte.inode.flag == Inode.READ || fte.inode.flag == Inode.WRITE))
+        root.lock.writeLock().lock();
+        try
         {
-            try { wait(); } catch (InterruptedException e){}
+            int last = root.lastBlock();
+            int goal = (last > 0) ? last + 1 : Inode.blockOf((short)0) + 1;
+            int top = Math.max(changed.lastKey() + 1, (root.length + Disk.blockSize - 1) / Disk.blockSize);
+            for (int i = 0; i < top; i++)
+            {
+                byte[] data = changed.get(i);
+                int block = root.blockFromSeekPtr(i * Disk.blockSize);
+                if (block == ERROR) // The directory has grown; blocks in between have no entries yet.
+                {
+                    int n = root.indexBlocksFor(i);
+                    while (n > 0)
+                    {
+                        int index = superBlock.claimBlock(goal);
+                        if (index == ERROR)
+                        {
+                            break;
+                        }
+                        root.addIndexBlock(index);
+                        goal = index + 1;
+                        n--;
+                    }
+                    block = (n == 0) ? superBlock.claimBlock(goal) : ERROR;
+                    if (block == ERROR)
+                    {
+                        break;
+                    }
+                    if (root.addBlock(block) == ERROR)
+                    {
+                        superBlock.returnBlock(block);
+                        break;
+                    }
+                    if (data == null)
+                    {
+                        data = new byte[Disk.blockSize];
+                    }
+                }
+                if (data != null)
+                {
+                    Journal.write(block, data);
+                    changed.remove(i);
+                }
+                goal = block + 1;
+                root.length = Math.max(root.length, (i + 1) * Disk.blockSize);
+            }
+            root.dirty = true;
+        }
+        finally
+        {
+            root.lock.writeLock().unlock();
+        }
+
+        // Out of space; try these again next time.
+        for (Integer block : changed.keySet())
+        {
+            directory.markDirty(block);
         }
-        // Flag and write the file to disk.
-        return fileTable.ffree(fte) ? 0 : ERROR;
     }
 
     public int fsize(int fd)
@@ -334,11 +871,10 @@
 
     public int format(int files)
     {
-        if (files > 0)
+        if (files > 0 && files <= SuperBlock.MAX_INODES && superBlock.fits(files))
         {
             superBlock.format(files);
-            directory = new Directory(files);
-            fileTable = new FileStructureTable(directory);
+            startEmpty();
             return 0;
         }
         return ERROR;
@@ -348,9 +884,9 @@
     {
         short iNumber = directory.namei(filename);
         if (iNumber == ERROR) return ERROR;
+        if (directory.isDirectory(iNumber)) return ERROR; // Use rmdir.
 
-
-        Inode inode = new Inode(iNumber);
+        Inode inode = inodes.get(iNumber);
 
         while(inode.count > 0)
         {
@@ -358,62 +894,79 @@
         }
 
         directory.ifree(iNumber);
-        inode.count = 0;
-        inode.length = 0;
-        inode.flag = Inode.UNUSED;
-        deallocAllBlocks(inode);
+        inode.lock.writeLock().lock();
+        try
+        {
+            inode.count = 0;
+            inode.length = 0;
+            inode.flag = Inode.UNUSED;
+            deallocAllBlocks(inode);
+        }
+        finally
+        {
+            inode.lock.writeLock().unlock();
+        }
         return 0;
     }
 
 
-    private void deallocAllBlocks(Inode inode)
+    public synchronized int mkdir(String path)
     {
-        Vector<Short> blocksFreed = new Vector<Short>();
+        short iNumber = directory.mkdir(path);
+        if (iNumber < 0) return ERROR; // Exists, parent missing, or out of inodes.
 
-        // Clear direct blocks.
-        for (int i = 0; i < Inode.directSize; i++)
-        {
-            if (inode.direct[i] > 0)
-            {
-                blocksFreed.add(new Short(inode.direct[i]));
-                inode.direct[i] = -1;
-            }
-        }
+        // A directory's inode holds no data; its entries live in the directory table. Nothing
+        // keeps it open, so drop the reference allocate takes; sync( ) still writes it.
+        inodes.release(inodes.allocate(iNumber));
+        return 0;
+    }
 
-        if(inode.indirect >= 0)
-        {
-            // Read in the indirect block.
-            byte[] indirectBlock = new byte[Disk.blockSize];
-            SysLib.rawread(inode.indirect, indirectBlock);
+    public synchronized int rmdir(String path)
+    {
+        short iNumber = directory.namei(path);
+        if (iNumber <= 0 || !directory.isDirectory(iNumber)) return ERROR;
+        if (!directory.ifree(iNumber)) return ERROR; // Not empty.
 
-            // Clear all blocks pointed to by the indirect block.
-            for (int i = 0; i < Disk.blockSize / 2; i++)
-            {
-                short cur = SysLib.bytes2short(indirectBlock, i);
-                //If its a valid block, reset it and add it to the return vector
-                if (cur > 0)
-                {
-                    //save it to the return vector
-                    blocksFreed.add(new Short(cur));
-                }
-            }
-            blocksFreed.add(new Short(inode.indirect));
-            inode.indirect = -1;
-        }
+        Inode inode = inodes.get(iNumber);
+        inode.flag = Inode.UNUSED;
+        inode.dirty = true;
+        return 0;
+    }
+
+    // Append the names in a directory to names; returns how many there were.
+    public synchronized int readdir(String path, Vector<String> names)
+    {
+        short iNumber = directory.namei(path);
+        Vector<String> entries = (iNumber < 0) ? null : directory.list(iNumber);
+        if (entries == null) return ERROR;
+
+        names.addAll(entries);
+        return entries.size();
+    }
+
+    private void deallocAllBlocks(Inode inode)
+    {
+        // Appended data that never got blocks just goes away.
+        inode.pending.clear();
+        superBlock.unreserve(inode.pendingReserved);
+        inode.pendingReserved = 0;
 
-        inode.toDisk(inode.iNumber);
+        // Every data and index block goes.
+        Vector<Integer> blocksFreed = inode.allBlocks();
+        inode.clearBlocks();
 
         // Return all freed blocks to the superblock freelist.
         for (int i = 0; i < blocksFreed.size(); i++)
-            superBlock.returnBlock((int)blocksFreed.elementAt(i));
+            superBlock.returnBlock(blocksFreed.elementAt(i));
     }
 
     private FileTableEntry convertFdToFtEnt(int fd)
     {
         FileTableEntry fte = null;
-        if ((myTcb = Kernel.scheduler.getMyTcb()) != null)
+        TCB tcb = Kernel.scheduler.getMyTcb(); // Local: every calling thread has its own.
+        if (tcb != null)
         {
-            fte = myTcb.getFtEnt(fd);
+            fte = FdTable.of(tcb).get(fd);
         }
         return fte;
     }
@@ -1,3 +1,5 @@
+import java.util.concurrent.locks.*;
+
 public class FileTableEntry
 {                                       // Each table entry should have
     public int seekPtr;                  //    a file seek pointer
@@ -5,6 +7,13 @@ public class FileTableEntry
     public final short iNumber;          //    this inode number
     public int count;                    //    # threads sharing this entry
     public final String mode;            //    "r", "w", "w+", or "a"
+    public int window;                   //    blocks to preallocate when the file grows
+    public int reserveStart;             //    next block of the preallocated run
+    public int reserveCount;             //    blocks left in the preallocated run
+    public int raNext;                   //    where a sequential read would continue
+    public int raWindow;                 //    blocks to read ahead
+    public int raEnd;                    //    first file block not read ahead yet
+    public final ReentrantLock lock = new ReentrantLock(); // one read, write or close at a time
     
     public FileTableEntry ( Inode i, short inumber, String m )
     {
@@ -13,6 +22,12 @@ public class FileTableEntry
         iNumber = inumber;
         count = 1;                        // at least on thread is using this entry
         mode = m;                         // once access mode is set, it never changes
+        window = FileSystem.PREALLOC_WINDOW;
+        reserveStart = 0;                 // nothing preallocated yet
+        reserveCount = 0;
+        raNext = 0;                       // reading from the top counts as sequential
+        raWindow = 0;
+        raEnd = 0;
         if ( mode.compareTo( "a" ) == 0 ) // if mode is append,
             seekPtr = inode.length;        // seekPtr points to the end of file
     }
@@ -0,0 +1,182 @@
+import java.util.*;
+
+// Free-space bitmap: one bit per disk block, set when the block is in use.
+// The whole map lives in memory. Allocating and freeing only flip bits and remember which
+// bitmap blocks changed; sync( ) writes just those blocks back.
+// Blocks can also be held: set aside for an open file without being used yet. Held blocks
+// aren't handed to anyone else, but they're free as far as the disk is concerned, so a
+// crash never leaks them.
+public class FreeMap
+{
+    private BitSet used;                // in use; what the disk's bitmap says
+    private BitSet held;                // set aside, in memory only
+    private BitSet taken;               // used or held: not free to claim
+    private int totalBlocks;
+    private int firstBlock;             // first disk block holding the bitmap
+    private boolean dirty[];            // which bitmap blocks need writing
+    private int bitsPerBlock;
+
+    public FreeMap(int totalBlocks, int firstBlock)
+    {
+        this.totalBlocks = totalBlocks;
+        this.firstBlock = firstBlock;
+        bitsPerBlock = Disk.blockSize * 8;
+        used = new BitSet(totalBlocks);
+        held = new BitSet(totalBlocks);
+        taken = new BitSet(totalBlocks);
+        dirty = new boolean[blocksNeeded(totalBlocks)];
+    }
+
+    // How many disk blocks a bitmap for this many blocks takes.
+    public static int blocksNeeded(int totalBlocks)
+    {
+        int bitsPerBlock = Disk.blockSize * 8;
+        return (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+    }
+
+    // Read the bitmap in from disk.
+    public synchronized void load()
+    {
+        byte[] data = new byte[Disk.blockSize];
+        for (int b = 0; b < dirty.length; b++)
+        {
+            Journal.read(firstBlock + b, data);
+            for (int i = 0; i < bitsPerBlock && b * bitsPerBlock + i < totalBlocks; i++)
+            {
+                if ((data[i / 8] & (1 << (i % 8))) != 0)
+                    used.set(b * bitsPerBlock + i);
+            }
+            dirty[b] = false;
+        }
+        held.clear();
+        taken = (BitSet)used.clone();
+    }
+
+    // Start over with only the blocks in [dataStart, dataEnd) free; the rest hold metadata.
+    public synchronized void format(int dataStart, int dataEnd)
+    {
+        used.clear();
+        used.set(0, dataStart);
+        used.set(dataEnd, totalBlocks);
+        held.clear();
+        taken = (BitSet)used.clone();
+        Arrays.fill(dirty, true);
+    }
+
+    // Claim length contiguous free blocks, the first run found at or after goal (wrapping).
+    // Returns the first block of the run, or -1 if there is no run that long.
+    public synchronized int claimRun(int goal, int length)
+    {
+        int start = findRun(goal, length);
+        if (start < 0)
+            return -1;
+
+        used.set(start, start + length);
+        taken.set(start, start + length);
+        markDirty(start, start + length);
+        return start;
+    }
+
+    // Hold length contiguous free blocks, found the same way as claimRun. Nothing changes on
+    // disk until claimHeld( ) uses one. Returns the first block of the run, or -1.
+    public synchronized int holdRun(int goal, int length)
+    {
+        int start = findRun(goal, length);
+        if (start < 0)
+            return -1;
+
+        held.set(start, start + length);
+        taken.set(start, start + length);
+        return start;
+    }
+
+    // Put a held block to use.
+    public synchronized boolean claimHeld(int block)
+    {
+        if (block < 0 || block >= totalBlocks || !held.get(block))
+            return false;
+        held.clear(block);
+        used.set(block);
+        markDirty(block, block + 1);
+        return true;
+    }
+
+    // Let go of a held block that wasn't used.
+    public synchronized void releaseHeld(int block)
+    {
+        if (block < 0 || block >= totalBlocks || !held.get(block))
+            return;
+        held.clear(block);
+        taken.clear(block);
+    }
+
+    public synchronized void release(int block)
+    {
+        if (block < 0 || block >= totalBlocks)
+            return;
+        used.clear(block);
+        taken.clear(block);
+        markDirty(block, block + 1);
+    }
+
+    public synchronized int freeCount()
+    {
+        return totalBlocks - taken.cardinality();
+    }
+
+    // Write back the bitmap blocks that changed.
+    public synchronized void sync()
+    {
+        byte[] data = new byte[Disk.blockSize];
+        for (int b = 0; b < dirty.length; b++)
+        {
+            if (!dirty[b])
+                continue;
+            Arrays.fill(data, (byte)0);
+            for (int i = 0; i < bitsPerBlock && b * bitsPerBlock + i < totalBlocks; i++)
+            {
+                if (used.get(b * bitsPerBlock + i))
+                    data[i / 8] |= (byte)(1 << (i % 8));
+            }
+            Journal.write(firstBlock + b, data);
+            dirty[b] = false;
+        }
+    }
+
+    // First free run of length blocks at or after goal, wrapping around, or -1.
+    private int findRun(int goal, int length)
+    {
+        if (goal < 0 || goal >= totalBlocks)
+            goal = 0;
+
+        int start = findRun(goal, totalBlocks, length);
+        if (start < 0)
+            start = findRun(0, Math.min(goal + length - 1, totalBlocks), length);
+        return start;
+    }
+
+    // First free run of length blocks starting in [from, to), or -1.
+    private int findRun(int from, int to, int length)
+    {
+        int pos = from;
+        while (pos < to)
+        {
+            int start = taken.nextClearBit(pos);
+            if (start >= to || start >= totalBlocks)
+                return -1;
+            int end = taken.nextSetBit(start);
+            if (end < 0 || end > totalBlocks)
+                end = totalBlocks;
+            if (end - start >= length)
+                return start;
+            pos = end;
+        }
+        return -1;
+    }
+
+    private void markDirty(int from, int to)
+    {
+        for (int b = from / bitsPerBlock; b <= (to - 1) / bitsPerBlock; b++)
+            dirty[b] = true;
+    }
+}
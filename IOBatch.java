@@ -0,0 +1,48 @@
+// Completion handle for a batch of block reads or writes submitted with SysLib.aread/awrite.
+// All of the batch's requests are queued on the DiskQueue at once, so the disk can serve them
+// back to back in whatever order its policy likes; the caller carries on and later calls
+// SysLib.await( ) (or polls isDone( )) to collect the result.
+public class IOBatch
+{
+    private DiskRequest requests[];
+
+    public IOBatch(int command, int blockIds[], byte buffers[][])
+    {
+        requests = new DiskRequest[blockIds.length];
+        for (int i = 0; i < blockIds.length; i++)
+            requests[i] = new DiskRequest(command, blockIds[i], buffers[i]);
+    }
+
+    public DiskRequest[] getRequests()
+    {
+        return requests;
+    }
+
+    public int size()
+    {
+        return requests.length;
+    }
+
+    // True once every block in the batch has been transferred.
+    public boolean isDone()
+    {
+        for (int i = 0; i < requests.length; i++)
+        {
+            if (!requests[i].isFinished())
+                return false;
+        }
+        return true;
+    }
+
+    // Wait for the whole batch; returns false if any block was rejected by the Disk.
+    public boolean await()
+    {
+        boolean ok = true;
+        for (int i = 0; i < requests.length; i++)
+        {
+            if (!requests[i].waitFor())
+                ok = false;
+        }
+        return ok;
+    }
+}
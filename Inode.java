@@ -1,16 +1,49 @@
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 public class Inode {
     public final static int iNodeSize = 32;        // fix to 32 bytes
-    public final static int directSize = 11;       // # direct pointers
+    public final static int directSize = 4;        // # direct pointers
+    public final static int inodesPerBlock = Disk.blockSize / iNodeSize;
+    // Block pointers are 4 bytes, so a disk can have more than 32767 blocks. That leaves room
+    // in the 32 bytes for 4 direct pointers next to the indirect and double indirect ones.
+    public final static int pointerSize = 4;
+    public final static int pointersPerBlock = Disk.blockSize / pointerSize; // in an index block
+    public final static int maxBlocks = directSize + pointersPerBlock          // the most a file can have
+                                        + pointersPerBlock * pointersPerBlock; // (about 8MB)
     // Changed to public; why would final static variables need to be private?
 
     public int length;                              // file size in bytes
     public short count;                             // # file-table entries pointing to this
     public short flag;                              // 0 = unused, 1 = used, ...
-    public short direct[] = new short[directSize];  // direct pointers
-    public short indirect;                          // a indirect pointer
+    public int direct[] = new int[directSize];      // direct pointers
+    public int indirect;                            // a indirect pointer
+    public int doubleIndirect;                      // block of pointers to indirect blocks
     public short iNumber;
+    public boolean dirty;                           // changed since it was last written (in-core only)
+
+    // Many readers or one writer per file. Shared by every open of the file through the InodeTable.
+    public final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Delayed allocation: data appended past the file's last block that has no block yet.
+    // pending.elementAt(i) holds file block pendingFirst + i. In core only, under the write lock.
+    public Vector<byte[]> pending = new Vector<byte[]>();
+    public int pendingFirst;
+    public int pendingReserved;                     // free blocks set aside for pending
+
+    // Index blocks are decoded on first use and kept; only the in-core copies change until
+    // flushIndexBlocks( ) writes them back.
+    private int indirectPtrs[];                     // decoded indirect block
+    private boolean indirectDirty;                  // indirectPtrs changed since it was written
+    private int doublePtrs[];                       // decoded double indirect block
+    private boolean doubleDirty;
+    private HashMap<Integer, int[]> secondPtrs = new HashMap<Integer, int[]>(); // slot in doublePtrs -> its block, decoded
+    private HashSet<Integer> secondDirty = new HashSet<Integer>();             // slots whose block changed
+    private int blocks = -1;                        // data blocks the file has, or -1 until counted
+    // Guards the pointers and the decoded index blocks, which readers holding only the read
+    // lock load on first use. A lock rather than the monitor: a virtual thread reading an
+    // index block from the disk while holding it is parked, not pinned to its carrier.
+    private final ReentrantLock pointerLock = new ReentrantLock();
 
     public static final int ERROR = -1;
 
@@ -28,6 +61,7 @@ public class Inode {
         for ( int i = 0; i < directSize; i++ )
             direct[i] = -1;
         indirect = -1;
+        doubleIndirect = -1;
     }
 
     // Retrieve Inode from disk.
@@ -35,13 +69,26 @@ public class Inode {
     {
         this.iNumber = iNumber;
 
-        int block = iNumber / 16 + 1; // 16 Inodes in a block. Add 1 to account for rounding down in division.
-
         byte[] inodeData = new byte[Disk.blockSize]; // In computer development there is no way to read a portion of a block from, or write a portion to, the disk.
-        SysLib.rawread(block, inodeData);
+        Journal.read(blockOf(iNumber), inodeData);
+
+        fromBytes(inodeData, offsetOf(iNumber));
+    }
+
+    // The disk block holding the iNumber-th Inode.
+    public static int blockOf(short iNumber)
+    {
+        return iNumber / inodesPerBlock + 1; // 16 Inodes in a block. Add 1 to skip the superblock.
+    }
 
-        int offset = (iNumber % 16) * iNodeSize; // Start offset pointer at head of the node's position in the block.
+    // Where the iNumber-th Inode starts within its block.
+    public static int offsetOf(short iNumber)
+    {
+        return (iNumber % inodesPerBlock) * iNodeSize;
+    }
 
+    public void fromBytes(byte[] inodeData, int offset)
+    {
         length = SysLib.bytes2int(inodeData, offset); // Load variables in order. Length...
         offset += 4;
         count = SysLib.bytes2short(inodeData, offset); // Count...
@@ -49,103 +96,402 @@ public class Inode {
         flag = SysLib.bytes2short(inodeData, offset); // Flag...
         offset += 2;
 
-        for (int i = 0; i < directSize; i++, offset += 2) // Direct pointers...
+        for (int i = 0; i < directSize; i++, offset += pointerSize) // Direct pointers...
         {
-            direct[i] = SysLib.bytes2short(inodeData, offset);
+            direct[i] = SysLib.bytes2int(inodeData, offset);
         }
-        indirect = SysLib.bytes2short(inodeData, offset); // Indirect pointer...
+        indirect = SysLib.bytes2int(inodeData, offset); // Indirect pointer...
+        offset += pointerSize;
+        doubleIndirect = SysLib.bytes2int(inodeData, offset); // Double indirect pointer.
+        forgetIndexBlocks();                           // Their contents are read when first needed.
     }
 
-    // Save to disk as the iNumber-th Inode.
-    public void toDisk(short iNumber)
+    public void toBytes(byte[] inodeData, int offset)
     {
-        int block = iNumber / 16 + 1; // 16 Inodes in a block. Add 1 to account for rounding down in division.
-
-        byte[] inodeData = new byte[Disk.blockSize]; // In computer development there is no way to read a portion of a block from, or write a portion to, the disk.
-        SysLib.rawread(block, inodeData);
-
-        int offset = (iNumber % 16) * iNodeSize; // Start offset pointer at head of the node's position in the block.
-        
         SysLib.int2bytes(length, inodeData, offset); // Save variables in order. Length...
         offset += 4;
         SysLib.short2bytes(count, inodeData, offset); // Count...
         offset += 2;
         SysLib.short2bytes(flag, inodeData, offset); // Flag...
         offset += 2;
-        for (int i = 0; i < directSize; i++, offset += 2) // Direct pointers...
+        for (int i = 0; i < directSize; i++, offset += pointerSize) // Direct pointers...
         {
-            SysLib.short2bytes(direct[i], inodeData, offset);
+            SysLib.int2bytes(direct[i], inodeData, offset);
         }
-        SysLib.short2bytes(indirect, inodeData, offset); // Indirect pointer...
-
-        SysLib.rawwrite(block, inodeData); // Write the block back to the disk.
+        SysLib.int2bytes(indirect, inodeData, offset); // Indirect pointer...
+        offset += pointerSize;
+        SysLib.int2bytes(doubleIndirect, inodeData, offset); // Double indirect pointer.
     }
 
-    public short blockFromSeekPtr(int seekPtr)
+    public int blockFromSeekPtr(int seekPtr)
     {
         if (seekPtr < 0)
             return ERROR;
 
-        short seekBlock = (short)(seekPtr / Disk.blockSize);
+        return pointerAt(seekPtr / Disk.blockSize);
+    }
+
+    // The not yet allocated page holding the fileBlock-th block of the file, or null.
+    public byte[] pendingPage(int fileBlock)
+    {
+        int i = fileBlock - pendingFirst;
+        if (i < 0 || i >= pending.size())
+            return null;
+        return pending.elementAt(i);
+    }
 
-        if (seekBlock < directSize)
+    // The block holding the fileBlock-th block of the file, or ERROR if it has none.
+    public int pointerAt(int fileBlock)
+    {
+        pointerLock.lock();
+        try
         {
-            short directBlock = direct[seekBlock];
-            if(directBlock == ERROR)
-            {
+            int pointer = ERROR;
+            if (fileBlock < 0 || fileBlock >= maxBlocks)
                 return ERROR;
+
+            if (fileBlock < directSize)
+                pointer = direct[fileBlock];
+            else if (fileBlock < directSize + pointersPerBlock)
+            {
+                if (indirect > 0)
+                    pointer = indirectPointers()[fileBlock - directSize];
             }
-            return directBlock;
+            else
+            {
+                int slot = (fileBlock - directSize - pointersPerBlock) / pointersPerBlock;
+                int[] second = secondPointers(slot);
+                if (second != null)
+                    pointer = second[(fileBlock - directSize - pointersPerBlock) % pointersPerBlock];
+            }
+            return (pointer > 0) ? pointer : ERROR;
+        }
+        finally
+        {
+            pointerLock.unlock();
         }
+    }
 
-        else
+    // How many data blocks the file has. Files have no holes, so they're the first ones.
+    public int blockCount()
+    {
+        pointerLock.lock();
+        try
         {
-            if(indirect == ERROR)
+            if (blocks >= 0)
+                return blocks;
+
+            int count = 0;
+            while (count < directSize && direct[count] > 0)
+                count++;
+            if (count == directSize && indirect > 0)
             {
-                return ERROR;
+                int used = filled(indirectPointers());
+                count += used;
+                if (used == pointersPerBlock && doubleIndirect > 0)
+                {
+                    int slots = filled(doublePointers());
+                    if (slots > 0)
+                        count += (slots - 1) * pointersPerBlock + filled(secondPointers(slots - 1));
+                }
             }
+            blocks = count;
+            return blocks;
+        }
+        finally
+        {
+            pointerLock.unlock();
+        }
+    }
 
-            byte[] data = new byte[Disk.blockSize];
-            SysLib.rawread(indirect, data);
+    // Leading slots of pointers that point somewhere.
+    private static int filled(int[] pointers)
+    {
+        int i = 0;
+        while (i < pointers.length && pointers[i] > 0)
+            i++;
+        return i;
+    }
 
-            short indirectBlock = SysLib.bytes2short(data, (seekBlock - directSize) * 2);
-            if(indirectBlock == 0)
-            {
+    // Index blocks that have to be added, with addIndexBlock, before fileBlock can be added
+    // after the file's last block: the ones whose first pointer is fileBlock's. Blocks further
+    // on in the same index block need none, so counting over a run of new blocks adds up to
+    // what the whole run needs.
+    public int indexBlocksFor(int fileBlock)
+    {
+        pointerLock.lock();
+        try
+        {
+            if (fileBlock < directSize || fileBlock >= maxBlocks)
+                return 0;
+
+            int slot = fileBlock - directSize;
+            if (slot < pointersPerBlock)
+                return (slot == 0 && indirect <= 0) ? 1 : 0;
+
+            slot -= pointersPerBlock;
+            int needed = 0;
+            if (slot == 0 && doubleIndirect <= 0)
+                needed++;                                   // The double indirect block itself...
+            if (slot % pointersPerBlock == 0
+                && (doubleIndirect <= 0 || doublePointers()[slot / pointersPerBlock] <= 0))
+                needed++;                                   // and the indirect block under it.
+            return needed;
+        }
+        finally
+        {
+            pointerLock.unlock();
+        }
+    }
+
+    // Add a freshly claimed index block: the next one the file needs for its next data block.
+    // Free blocks are zeroed, so there's nothing to read; it starts out with no pointers.
+    // Returns ERROR if the next data block needs no index block.
+    public int addIndexBlock(int block)
+    {
+        pointerLock.lock();
+        try
+        {
+            int slot = blockCount() - directSize;
+            if (slot < 0 || slot >= maxBlocks - directSize)
                 return ERROR;
+
+            if (slot < pointersPerBlock)
+            {
+                if (indirect > 0)
+                    return ERROR;
+                indirect = block;
+                indirectPtrs = new int[pointersPerBlock];
+                indirectDirty = true;
             }
-            return indirectBlock;
+            else if (doubleIndirect <= 0)
+            {
+                doubleIndirect = block;
+                doublePtrs = new int[pointersPerBlock];
+                doubleDirty = true;
+            }
+            else
+            {
+                int outer = (slot - pointersPerBlock) / pointersPerBlock;
+                if (doublePointers()[outer] > 0)
+                    return ERROR;
+                doublePtrs[outer] = block;
+                doubleDirty = true;
+                secondPtrs.put(outer, new int[pointersPerBlock]);
+                secondDirty.add(outer);
+            }
+            dirty = true;
+            return 0;
+        }
+        finally
+        {
+            pointerLock.unlock();
         }
     }
 
-    public int addBlock(short block)
+    // Add block after the file's last block. Returns ERROR if the file is as big as it can be,
+    // or the index block the pointer goes in hasn't been added yet.
+    public int addBlock(int block)
     {
-        // Check for space in direct block.
-        for (int i = 0; i < directSize; i++)
+        pointerLock.lock();
+        try
         {
-            if (direct[i] <= 0)
+            int fileBlock = blockCount();
+            if (fileBlock >= maxBlocks)
+                return ERROR;
+
+            if (fileBlock < directSize)
+                direct[fileBlock] = block;
+            else if (fileBlock < directSize + pointersPerBlock)
+            {
+                if (indirect <= 0)
+                    return ERROR;
+                // Only the in-core copy changes; flushIndexBlocks writes it back.
+                indirectPointers()[fileBlock - directSize] = block;
+                indirectDirty = true;
+            }
+            else
             {
-                direct[i] = block;
-                return 0; // Success
+                int slot = fileBlock - directSize - pointersPerBlock;
+                int[] second = secondPointers(slot / pointersPerBlock);
+                if (second == null)
+                    return ERROR;
+                second[slot % pointersPerBlock] = block;
+                secondDirty.add(slot / pointersPerBlock);
             }
+            blocks++;
+            dirty = true;
+            return 0;
+        }
+        finally
+        {
+            pointerLock.unlock();
         }
+    }
 
-        // No space in direct; try indirect next.
-        if(indirect != ERROR)
+    // The highest-numbered data block the file has, or ERROR if it has none.
+    public int lastBlock()
+    {
+        pointerLock.lock();
+        try
         {
-            byte[] data = new byte[Disk.blockSize];
-            SysLib.rawread(indirect, data);
-            for(short offset = 0; offset < Disk.blockSize; offset += 2)
+            return pointerAt(blockCount() - 1);
+        }
+        finally
+        {
+            pointerLock.unlock();
+        }
+    }
+
+    // Every block the file has: its data blocks and the index blocks pointing at them.
+    public Vector<Integer> allBlocks()
+    {
+        pointerLock.lock();
+        try
+        {
+            Vector<Integer> all = new Vector<Integer>();
+            for (int i = 0; i < directSize; i++)
+            {
+                if (direct[i] > 0)
+                    all.add(direct[i]);
+            }
+            if (indirect > 0)
+            {
+                addPointers(indirectPointers(), all);
+                all.add(indirect);
+            }
+            if (doubleIndirect > 0)
             {
-                //The next free indirect will be -1
-                if (SysLib.bytes2short(data, offset) <= 0)
+                int[] outer = doublePointers();
+                for (int i = 0; i < outer.length; i++)
                 {
-                    //write the block number to the byte array
-                    SysLib.short2bytes(block, data, offset);
-                    //write the block back to disk return success condition on disk
-                    return SysLib.rawwrite(indirect, data);
+                    if (outer[i] > 0)
+                    {
+                        addPointers(secondPointers(i), all);
+                        all.add(outer[i]);
+                    }
                 }
+                all.add(doubleIndirect);
             }
+            return all;
+        }
+        finally
+        {
+            pointerLock.unlock();
+        }
+    }
+
+    private static void addPointers(int[] pointers, Vector<Integer> all)
+    {
+        for (int i = 0; i < pointers.length; i++)
+        {
+            if (pointers[i] > 0)
+                all.add(pointers[i]);
+        }
+    }
+
+    // Forget every block (they've been freed).
+    public void clearBlocks()
+    {
+        pointerLock.lock();
+        try
+        {
+            for (int i = 0; i < directSize; i++)
+                direct[i] = -1;
+            indirect = -1;
+            doubleIndirect = -1;
+            forgetIndexBlocks();
+            blocks = 0;
+            dirty = true;
         }
-        return ERROR;
+        finally
+        {
+            pointerLock.unlock();
+        }
+    }
+
+    private void forgetIndexBlocks()
+    {
+        indirectPtrs = null;
+        indirectDirty = false;
+        doublePtrs = null;
+        doubleDirty = false;
+        secondPtrs.clear();
+        secondDirty.clear();
+        blocks = -1;
+    }
+
+    // The pointers stored in the indirect block, decoded once and kept in memory.
+    private int[] indirectPointers()
+    {
+        if (indirectPtrs == null)
+            indirectPtrs = readPointers(indirect);
+        return indirectPtrs;
+    }
+
+    private int[] doublePointers()
+    {
+        if (doublePtrs == null)
+            doublePtrs = readPointers(doubleIndirect);
+        return doublePtrs;
+    }
+
+    // The pointers in the slot-th indirect block under the double indirect one, or null if
+    // there's no such block yet.
+    private int[] secondPointers(int slot)
+    {
+        if (doubleIndirect <= 0 || slot < 0 || slot >= pointersPerBlock)
+            return null;
+        int[] pointers = secondPtrs.get(slot);
+        if (pointers == null)
+        {
+            int block = doublePointers()[slot];
+            if (block <= 0)
+                return null;
+            pointers = readPointers(block);
+            secondPtrs.put(slot, pointers);
+        }
+        return pointers;
+    }
+
+    private static int[] readPointers(int block)
+    {
+        byte[] data = new byte[Disk.blockSize];
+        Journal.read(block, data);
+
+        int[] pointers = new int[pointersPerBlock];
+        for (int i = 0; i < pointers.length; i++)
+            pointers[i] = SysLib.bytes2int(data, i * pointerSize);
+        return pointers;
+    }
+
+    // Write back the index blocks that got a pointer since they were loaded.
+    public void flushIndexBlocks()
+    {
+        pointerLock.lock();
+        try
+        {
+            if (indirectDirty && indirect > 0)
+                writePointers(indirect, indirectPtrs);
+            if (doubleDirty && doubleIndirect > 0)
+                writePointers(doubleIndirect, doublePtrs);
+            for (int slot : secondDirty)
+                writePointers(doublePtrs[slot], secondPtrs.get(slot));
+            indirectDirty = false;
+            doubleDirty = false;
+            secondDirty.clear();
+        }
+        finally
+        {
+            pointerLock.unlock();
+        }
+    }
+
+    private static void writePointers(int block, int[] pointers)
+    {
+        byte[] data = new byte[Disk.blockSize];
+        for (int i = 0; i < pointers.length; i++)
+            SysLib.int2bytes(pointers[i], data, i * pointerSize);
+        Journal.write(block, data);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+import java.util.*;
+
+// In-core inode table.
+// Every open of a file shares the one Inode object kept here, so flag and count mean the
+// same thing to every file table entry. Changes only mark the Inode dirty; sync( ) writes
+// the dirty ones back a whole inode block (16 inodes) at a time.
+public class InodeTable
+{
+    private HashMap<Short, Inode> table;    // iNumber -> in-core Inode
+    private SuperBlock superBlock;          // knows which inode blocks hold anything yet
+
+    public InodeTable(SuperBlock superBlock)
+    {
+        table = new HashMap<Short, Inode>();
+        this.superBlock = superBlock;
+    }
+
+    // Return the in-core copy of an existing inode, reading it from disk the first time.
+    public synchronized Inode get(short iNumber)
+    {
+        Inode inode = table.get(iNumber);
+        if (inode == null)
+        {
+            if (superBlock.inodeBlockReady(Inode.blockOf(iNumber)))
+                inode = new Inode(iNumber);
+            else
+            {
+                inode = new Inode();        // Never written since the format.
+                inode.iNumber = iNumber;
+                inode.flag = Inode.UNUSED;
+            }
+            inode.count = 0;                // Nothing has it open yet, whatever the disk says.
+            table.put(iNumber, inode);
+        }
+        return inode;
+    }
+
+    // Same as get, but also takes a reference for a new open of the file.
+    public synchronized Inode acquire(short iNumber)
+    {
+        Inode inode = get(iNumber);
+        inode.count++;
+        return inode;
+    }
+
+    // Set up an in-core inode for a newly created file, with one reference for the open
+    // creating it. Nothing is read from disk.
+    public synchronized Inode allocate(short iNumber)
+    {
+        Inode inode = new Inode();
+        inode.iNumber = iNumber;
+        inode.count = 1;
+        inode.dirty = true;
+        table.put(iNumber, inode);
+        return inode;
+    }
+
+    // Drop a reference taken by acquire or allocate. Clean inodes nobody has open are
+    // forgotten; dirty ones stay until sync( ) has written them, and ones with appended data
+    // still waiting for blocks until it has some.
+    public synchronized void release(Inode inode)
+    {
+        if (inode.count > 0)
+            inode.count--;
+        if (inode.count <= 0 && !inode.dirty && inode.pending.isEmpty())
+            table.remove(inode.iNumber);
+    }
+
+    // The in-core inodes holding appended data that has no blocks yet.
+    public synchronized Vector<Inode> withPending()
+    {
+        Vector<Inode> result = new Vector<Inode>();
+        for (Inode inode : table.values())
+        {
+            if (!inode.pending.isEmpty())
+                result.add(inode);
+        }
+        return result;
+    }
+
+    // Write back every dirty inode, reading and writing each inode block only once.
+    public synchronized void sync()
+    {
+        TreeMap<Integer, Vector<Inode>> blocks = new TreeMap<Integer, Vector<Inode>>();
+        for (Inode inode : table.values())
+        {
+            if (!inode.dirty)
+                continue;
+            int block = Inode.blockOf(inode.iNumber);
+            if (!blocks.containsKey(block))
+                blocks.put(block, new Vector<Inode>());
+            blocks.get(block).add(inode);
+        }
+
+        // Inode blocks past the ones written since the format hold garbage: they start out
+        // as zeros, and any skipped over are written as zeros too.
+        if (!blocks.isEmpty())
+        {
+            for (int block = superBlock.inodeBlocksReady + 1; block < blocks.lastKey(); block++)
+            {
+                if (!blocks.containsKey(block))
+                    blocks.put(block, new Vector<Inode>());
+            }
+        }
+
+        byte[] data = new byte[Disk.blockSize];
+        for (Map.Entry<Integer, Vector<Inode>> entry : blocks.entrySet())
+        {
+            if (superBlock.inodeBlockReady(entry.getKey()))
+                Journal.read(entry.getKey(), data);
+            else
+                Arrays.fill(data, (byte)0);
+            for (Inode inode : entry.getValue())
+            {
+                // Writers change the pointers and length under the write lock alone; hold them
+                // off so neither a half-made change nor a later dirty mark is lost.
+                inode.lock.readLock().lock();
+                try
+                {
+                    inode.toBytes(data, Inode.offsetOf(inode.iNumber));
+                    inode.flushIndexBlocks();
+                    inode.dirty = false;
+                }
+                finally
+                {
+                    inode.lock.readLock().unlock();
+                }
+            }
+            Journal.write(entry.getKey(), data);
+        }
+        if (!blocks.isEmpty())
+            superBlock.inodeBlocksWritten(blocks.lastKey());
+
+        // Now that they're clean, drop the ones that aren't open.
+        Iterator<Inode> it = table.values().iterator();
+        while (it.hasNext())
+        {
+            Inode inode = it.next();
+            if (inode.count <= 0 && inode.pending.isEmpty())
+                it.remove();
+        }
+    }
+}
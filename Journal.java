@@ -0,0 +1,330 @@
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Write-ahead log for file system metadata: the superblock, the bitmap, inode blocks,
+// index blocks and the directory.
+// Metadata blocks aren't written in place as they change. SuperBlock, FreeMap, InodeTable
+// and FileSystem hand their new block images to write( ), which only keeps them, and
+// FileSystem.sync( ) commits them all as one transaction: the images go to the log region in
+// a single batch of sequential writes, then the log header names their home blocks and
+// marks the transaction committed. Only then are the images written home through the
+// cache, and a background thread checkpoints them (gets them onto the disk and marks the
+// header checkpointed) so the log can be reused. If the system stops before that, replay( )
+// copies a committed transaction home again at the next boot.
+// The log is sized at format for the biggest transaction the file system can make, so a
+// sync is always one transaction and is never half applied.
+//
+// Log region: [header][image 1]...[image n], just before the bitmap.
+// Header: magic, sequence, state, image count, CRC, the epoch of the format that wrote it,
+// then the home block numbers, running on into as many more blocks as they need. The CRC
+// covers those extra header blocks and the images. A header from an earlier format is
+// ignored, so formatting never has to clear the log.
+public class Journal
+{
+    public final static int MAGIC = 0x4A524E4C;     // "JRNL"
+    public final static int EMPTY = 0;
+    public final static int COMMITTED = 1;
+    public final static int CHECKPOINTED = 2;
+
+    // Fewest blocks set aside for the log at format, header included (-Dthreados.fs.log=n).
+    public final static int LOG_BLOCKS = Math.max(2, Integer.getInteger("threados.fs.log", 32));
+
+    private final static int HEADER_SIZE = 24;      // bytes before the block numbers
+
+    private static int logStart = -1;               // header block, or -1 to write in place
+    private static int logBlocks;
+    private static int epoch;                       // from the superblock
+    private static int sequence;
+    private static TreeMap<Integer, byte[]> staged = new TreeMap<Integer, byte[]>(); // home block -> image
+    private static TreeMap<Integer, byte[]> committing = new TreeMap<Integer, byte[]>(); // being committed
+    private final static Object commitLock = new Object(); // one commit at a time
+    private static Checkpointer checkpointer;
+
+    // Log blocks a file system of this size needs for its biggest transaction: the superblock,
+    // the whole bitmap, every inode block and directory block, and every index block there's
+    // room for, plus the header naming them. Only files with more than directSize blocks have
+    // an indirect block, only ones with more than directSize + pointersPerBlock a double
+    // indirect one, and the indirect blocks under that map a block each at the least.
+    public static int blocksFor(int totalBlocks, int files)
+    {
+        int ppb = Inode.pointersPerBlock;
+        int index = Math.min(files, totalBlocks / (Inode.directSize + 2))
+                       + 2 * Math.min(files, totalBlocks / (Inode.directSize + ppb + 3))
+                       + totalBlocks / ppb;
+        int images = 1 + FreeMap.blocksNeeded(totalBlocks) + files / Inode.inodesPerBlock + 1
+                     + (files + Directory.entriesPerBlock - 1) / Directory.entriesPerBlock + index;
+        return Math.max(LOG_BLOCKS, headerBlocks(images) + images);
+    }
+
+    // Blocks the header of a transaction with count images takes.
+    private static int headerBlocks(int count)
+    {
+        return (HEADER_SIZE + count * 4 + Disk.blockSize - 1) / Disk.blockSize;
+    }
+
+    // Use the log at [start, start + blocks). Called by the SuperBlock once it knows where it is.
+    public static synchronized void setRegion(int start, int blocks, int formatEpoch)
+    {
+        if (checkpointer == null)
+        {
+            checkpointer = new Checkpointer();
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+        checkpointer.waitIdle();
+        logStart = start;
+        logBlocks = blocks;
+        epoch = formatEpoch;
+    }
+
+    // Start over for a freshly formatted disk. Whatever is in the log belongs to another epoch.
+    public static void reset(int start, int blocks, int formatEpoch)
+    {
+        synchronized (commitLock)
+        {
+            synchronized (Journal.class)
+            {
+                setRegion(start, blocks, formatEpoch);
+                staged.clear();
+                sequence = 0;
+            }
+        }
+    }
+
+    // Write everything staged straight to its home block, without the log. Only for a new
+    // file system, which has nothing to lose if it's cut short. The superblock goes last, once
+    // the inode and bitmap blocks are on the disk, so a superblock for the new file system is
+    // never found in front of the old one's root inode.
+    public static synchronized void applyInPlace()
+    {
+        byte[] superBlock = staged.remove(0);
+        int[] blocks = new int[staged.size()];
+        int i = 0;
+        for (Map.Entry<Integer, byte[]> entry : staged.entrySet())
+        {
+            BlockIO.write(entry.getKey(), entry.getValue());
+            blocks[i++] = entry.getKey();
+        }
+        BlockIO.sync(blocks);
+        staged.clear();
+
+        if (superBlock != null)
+        {
+            BlockIO.write(0, superBlock);
+            BlockIO.sync(new int[] { 0 });
+        }
+    }
+
+    // Read a metadata block, including changes that haven't been committed yet, or are
+    // being committed but aren't home yet.
+    public static int read(int blkNumber, byte[] b)
+    {
+        synchronized (Journal.class)
+        {
+            byte[] image = staged.get(blkNumber);
+            if (image == null)
+                image = committing.get(blkNumber);
+            if (image != null)
+            {
+                System.arraycopy(image, 0, b, 0, Disk.blockSize);
+                return Kernel.OK;
+            }
+        }
+        return BlockIO.read(blkNumber, b);
+    }
+
+    // Queue a new image of a metadata block for the next commit.
+    public static synchronized int write(int blkNumber, byte[] b)
+    {
+        if (logStart < 0)
+            return BlockIO.write(blkNumber, b);         // No log yet; nothing to order against.
+        staged.put(blkNumber, Arrays.copyOf(b, Disk.blockSize));
+        return Kernel.OK;
+    }
+
+    // Commit everything written since the last commit, as one transaction. Only taking the
+    // images out of staged holds the Journal's lock: the log I/O doesn't, so metadata can be
+    // read while it goes on.
+    public static int commit()
+    {
+        synchronized (commitLock)
+        {
+            synchronized (Journal.class)
+            {
+                if (staged.isEmpty())
+                    return Kernel.OK;
+                if (headerBlocks(staged.size()) + staged.size() > logBlocks)
+                    return Kernel.ERROR;                // Can't happen with a log sized by blocksFor.
+                committing = staged;
+                staged = new TreeMap<Integer, byte[]>();
+            }
+
+            int count = committing.size();
+            int extra = headerBlocks(count) - 1;        // header blocks after the first
+            int[] home = new int[count];
+            byte[] header = new byte[(extra + 1) * Disk.blockSize];
+            int i = 0;
+            for (Integer block : committing.keySet())
+            {
+                home[i] = block;
+                SysLib.int2bytes(block, header, HEADER_SIZE + i * 4);
+                i++;
+            }
+
+            // The rest of the header and the images go in one batch of writes to consecutive blocks.
+            int[] log = new int[extra + count];
+            byte[][] images = new byte[extra + count][];
+            CRC32 crc = new CRC32();
+            for (i = 0; i < log.length; i++)
+            {
+                log[i] = logStart + 1 + i;
+                images[i] = (i < extra) ? Arrays.copyOfRange(header, (i + 1) * Disk.blockSize, (i + 2) * Disk.blockSize)
+                                        : committing.get(home[i - extra]);
+                crc.update(images[i]);
+            }
+
+            // The last transaction has to be home before its log blocks are overwritten.
+            checkpointer.waitIdle();
+
+            IOBatch batch = SysLib.awrite(log, images);
+            if (batch == null || SysLib.await(batch) != Kernel.OK)
+                return abort();
+
+            // Then the header's first block, which is what makes the transaction count,
+            byte[] first = Arrays.copyOf(header, Disk.blockSize);
+            SysLib.int2bytes(MAGIC, first, 0);
+            SysLib.int2bytes(++sequence, first, 4);
+            SysLib.int2bytes(COMMITTED, first, 8);
+            SysLib.int2bytes(count, first, 12);
+            SysLib.int2bytes((int)crc.getValue(), first, 16);
+            SysLib.int2bytes(epoch, first, 20);
+            if (SysLib.rawwrite(logStart, first) == Kernel.ERROR)
+                return abort();
+
+            // and now the blocks can go home.
+            for (i = 0; i < count; i++)
+                BlockIO.write(home[i], committing.get(home[i]));
+            synchronized (Journal.class)
+            {
+                committing = new TreeMap<Integer, byte[]>();
+            }
+            checkpointer.add(logStart, home, first);
+            return Kernel.OK;
+        }
+    }
+
+    // The commit didn't happen; put its images back for the next one, behind anything newer.
+    private static int abort()
+    {
+        synchronized (Journal.class)
+        {
+            for (Map.Entry<Integer, byte[]> entry : committing.entrySet())
+                staged.putIfAbsent(entry.getKey(), entry.getValue());
+            committing = new TreeMap<Integer, byte[]>();
+        }
+        return Kernel.ERROR;
+    }
+
+    // At boot, before anything reads metadata: copy a committed transaction that may not have
+    // reached its home blocks. Replaying one that did is harmless.
+    public static synchronized void replay()
+    {
+        byte[] data = new byte[Disk.blockSize];
+        SysLib.rawread(0, data);
+        int totalBlocks = SysLib.bytes2int(data, 0);
+        int start = SysLib.bytes2int(data, 16);
+        int blocks = SysLib.bytes2int(data, 20);
+        int formatEpoch = SysLib.bytes2int(data, 28);
+        if (blocks < 2 || start <= 0 || start + blocks > totalBlocks)
+            return;                                     // No log on this disk.
+
+        byte[] first = new byte[Disk.blockSize];
+        SysLib.rawread(start, first);
+        int count = SysLib.bytes2int(first, 12);
+        if (SysLib.bytes2int(first, 0) != MAGIC || SysLib.bytes2int(first, 8) != COMMITTED
+            || SysLib.bytes2int(first, 20) != formatEpoch
+            || count <= 0 || headerBlocks(count) + count > blocks)
+            return;
+
+        // The rest of the header and the images, in log order.
+        int extra = headerBlocks(count) - 1;
+        int[] log = new int[extra + count];
+        byte[][] images = new byte[extra + count][Disk.blockSize];
+        for (int i = 0; i < log.length; i++)
+            log[i] = start + 1 + i;
+        IOBatch batch = SysLib.aread(log, images);
+        if (batch == null || SysLib.await(batch) != Kernel.OK)
+            return;
+
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < log.length; i++)
+            crc.update(images[i]);
+        if ((int)crc.getValue() != SysLib.bytes2int(first, 16))
+            return;                                     // Torn; the commit never happened.
+
+        byte[] header = new byte[(extra + 1) * Disk.blockSize];
+        System.arraycopy(first, 0, header, 0, Disk.blockSize);
+        for (int i = 0; i < extra; i++)
+            System.arraycopy(images[i], 0, header, (i + 1) * Disk.blockSize, Disk.blockSize);
+        for (int i = 0; i < count; i++)
+            SysLib.rawwrite(SysLib.bytes2int(header, HEADER_SIZE + i * 4), images[extra + i]);
+        SysLib.int2bytes(CHECKPOINTED, first, 8);
+        SysLib.rawwrite(start, first);
+    }
+
+    // Gets a committed transaction's home blocks out of the cache onto the disk, then marks
+    // the header checkpointed. One transaction at a time; commit( ) waits for it to finish
+    // before reusing the log.
+    private static class Checkpointer extends Thread
+    {
+        private int start;
+        private int[] blocks;                           // null when idle
+        private byte[] header;
+
+        public synchronized void add(int logStart, int[] homeBlocks, byte[] committed)
+        {
+            start = logStart;
+            blocks = homeBlocks;
+            header = committed;
+            notifyAll();
+        }
+
+        public synchronized void waitIdle()
+        {
+            while (blocks != null)
+            {
+                try { wait(); } catch (InterruptedException e) {}
+            }
+        }
+
+        public void run()
+        {
+            for (;;)
+            {
+                int[] homeBlocks;
+                byte[] done;
+                int at;
+                synchronized (this)
+                {
+                    while (blocks == null)
+                    {
+                        try { wait(); } catch (InterruptedException e) {}
+                    }
+                    homeBlocks = blocks;
+                    done = header;
+                    at = start;
+                }
+
+                BlockIO.sync(homeBlocks);
+                SysLib.int2bytes(CHECKPOINTED, done, 8);
+                SysLib.rawwrite(at, done);
+
+                synchronized (this)
+                {
+                    blocks = null;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 import java.io.BufferedReader;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Properties;
+import java.util.Vector;
 
 public class Kernel
 {
@@ -39,6 +42,27 @@ public final static int SEEK    = 17; // SysLib.seek( int fd, int offest,
 public final static int FORMAT  = 18; // SysLib.format( int files )
 public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+// Batched and asynchronous block I/O
+public final static int AREAD   = 20; // SysLib.aread( int blks[], byte b[][] )
+public final static int AWRITE  = 21; // SysLib.awrite( int blks[], byte b[][] )
+public final static int AWAIT   = 22; // SysLib.await( IOBatch batch )
+public final static int CREADV  = 23; // SysLib.creadv( int blks[], byte b[][] )
+
+// Directories
+public final static int MKDIR   = 24; // SysLib.mkdir( String path )
+public final static int RMDIR   = 25; // SysLib.rmdir( String path )
+public final static int READDIR = 26; // SysLib.readdir( String path, Vector names )
+
+// Partial-block and positional I/O
+public final static int CLOAD   = 27; // SysLib.cload( int blks[] )
+public final static int PREAD   = 28; // SysLib.pread( int fd, byte b[], int off,
+                                      //               int len, int pos )
+public final static int PWRITE  = 29; // SysLib.pwrite( int fd, byte b[], int off,
+                                      //                int len, int pos )
+
+// Read-ahead
+public final static int CPREFETCH = 30; // SysLib.cprefetch( int blks[] )
+
 // Predefined file descriptors
 public final static int STDIN  = 0;
 public final static int STDOUT = 1;
@@ -51,16 +75,18 @@ public final static int ERROR = -1;
 // System thread references
 public static Scheduler scheduler;
 private static Disk disk;
-private static Cache cache;
+private static BlockDevice device;   // the disk's request queue, or an array of them
+private static BufferCache cache;
 
 // Synchronized Queues
 private static SyncQueue waitQueue;  // for threads to wait for their child
 private static SyncQueue ioQueue;    // I/O queue
 
-private final static int COND_DISK_REQ = 1; // wait condition
-private final static int COND_DISK_FIN = 2; // wait condition
+private final static int COND_DISK_FIN = 2; // wait condition, plus one per extra disk
+private static int diskCount = 1;
 
 private static FileSystem fs;
+private static boolean virtualExec;  // user programs get virtual threads (threados.exec)
 
 // Standard input
 private static BufferedReader input
@@ -73,21 +99,75 @@ switch( irq ) {
 case INTERRUPT_SOFTWARE: // System calls
     switch( cmd ) {
     case BOOT:
-    // instantiate and start a scheduler
-    scheduler = new Scheduler( );
+    // read the boot configuration before anything sizes itself from it
+    loadConfig( System.getProperty( "threados.config", "threados.conf" ) );
+    int diskBlocks = Integer.getInteger( "threados.disk.blocks", 1000 );
+
+    // instantiate and start a scheduler: round robin, a multilevel feedback queue
+    // with threados.scheduler=mlfq, or one run queue per virtual CPU with smp.
+    // With threados.exec=virtual every program runs at once on a (virtual) thread.
+    String policy = System.getProperty( "threados.scheduler", "rr" );
+    virtualExec = "virtual".equalsIgnoreCase( System.getProperty( "threados.exec", "platform" ) );
+    int maxThreads = Integer.getInteger( "threados.threads.max", virtualExec ? 100000 : 10000 );
+    if ( virtualExec )
+        scheduler = new VirtualThreadScheduler( maxThreads );
+    else if ( policy.equalsIgnoreCase( "mlfq" ) )
+        scheduler = new MLFQScheduler( Integer.getInteger( "threados.mlfq.levels", 3 ),
+                                       Integer.getInteger( "threados.mlfq.quantum", 250 ),
+                                       Integer.getInteger( "threados.mlfq.boost", 5000 ),
+                                       maxThreads );
+    else if ( policy.equalsIgnoreCase( "smp" ) )
+        scheduler = new MultiCoreScheduler(
+            Integer.getInteger( "threados.cpus", Runtime.getRuntime( ).availableProcessors( ) ),
+            Integer.getInteger( "threados.smp.quantum", 1000 ), maxThreads );
+    else
+        scheduler = new Scheduler( 1000, maxThreads ); // Scheduler's default time slice
     scheduler.start( );
 
-    // instantiate and start a disk
-    disk = new Disk( 1000 );
-    disk.start( );
+    // instantiate and start the disks: a single one, or an array of threados.disk.count
+    // of them, striped ("raid0") or mirrored ("raid1")
+    int layout = DiskArray.parseLayout( System.getProperty( "threados.disk.layout" ) );
+    int chunkBlocks = Integer.getInteger( "threados.disk.chunk", 8 );
+    Disk disks[] = new Disk[ ( layout == DiskArray.SINGLE ) ? 1
+                             : Math.max( 2, Integer.getInteger( "threados.disk.count", 2 ) ) ];
+    int memberBlocks = DiskArray.memberBlocks( layout, diskBlocks, disks.length, chunkBlocks );
+    for ( int i = 0; i < disks.length; i++ ) {
+        disks[i] = newDisk( memberBlocks, ( disks.length == 1 ) ? -1 : i );
+        disks[i].start( );
+    }
+    disk = disks[0];
 
     // instantiate a cache memory
-    cache = new Cache( disk.blockSize, 10 );
+    cache = new BufferCache( disk.blockSize,
+                 Integer.getInteger( "threados.cache.blocks", 64 ),
+                 Integer.getInteger( "threados.cache.shards", 8 ),
+                 System.getProperty( "threados.cache.policy", "clock" ) );
+
+    // choose whether the file system reads and writes through the cache
+    BlockIO.setMode( BlockIO.parseMode( System.getProperty( "threados.blocklayer" ) ) );
 
     // instantiate synchronized queues
-    ioQueue = new SyncQueue( );
+    ioQueue = new SyncQueue( Math.max( 10, COND_DISK_FIN + disks.length ) );
     waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
-    fs = new FileSystem(1000);
+
+    // put a request queue in front of each disk; each waits on its own condition
+    DiskQueue queues[] = new DiskQueue[ disks.length ];
+    for ( int i = 0; i < disks.length; i++ ) {
+        queues[i] = new DiskQueue( disks[i], ioQueue, COND_DISK_FIN + i,
+            DiskQueue.newPolicy( System.getProperty( "threados.disk.policy", "clook" ) ) );
+        queues[i].start( );
+    }
+    diskCount = disks.length;
+    if ( disks.length == 1 )
+        device = queues[0];
+    else {
+        DiskArray array = new DiskArray( layout, queues, chunkBlocks, diskBlocks );
+        if ( !array.verify( ) ) // resynced if it can be; otherwise every request fails
+            SysLib.cerr( "threadOS: the mirrored disks don't match; not mounting them\n" );
+        device = array;
+    }
+
+    fs = new FileSystem( diskBlocks );
     return OK;
     case EXEC:
     return sysExec( ( String[] )args );
@@ -107,6 +187,7 @@ case INTERRUPT_SOFTWARE: // System calls
         waitQueue.dequeueAndWakeup( myPid, myTid );
         // I'm terminated!
         scheduler.deleteThread( );
+        FdTable.forget( myTcb );
         return OK;
         }
     }
@@ -115,40 +196,19 @@ case INTERRUPT_SOFTWARE: // System calls
     scheduler.sleepThread( param ); // param = milliseconds
     return OK;
     case RAWREAD: // read a block of data from disk
-    while ( disk.read( param, ( byte[] )args ) == false )
-        ioQueue.enqueueAndSleep( COND_DISK_REQ );
-    while ( disk.testAndResetReady( ) == false )
-        ioQueue.enqueueAndSleep( COND_DISK_FIN );
-
-    // it's possible that a thread waiting to make a request was released by the disk,
-    // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
-    // and then went back to sleep
-    Kernel.ioQueue.dequeueAndWakeup(Kernel.COND_DISK_REQ);
-
-    // now you can access data in buffer
-    return OK;
+    // queued behind other requests; returns when the data is in the buffer
+    return device.read( param, ( byte[] )args ) ? OK : ERROR;
     case RAWWRITE: // write a block of data to disk
-    while ( disk.write( param, ( byte[] )args ) == false )
-        ioQueue.enqueueAndSleep( COND_DISK_REQ );
-    while ( disk.testAndResetReady( ) == false )
-        ioQueue.enqueueAndSleep( COND_DISK_FIN );
-    // it's possible that a thread waiting to make a request was released by the disk,
-    // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
-    // and then went back to sleep
-    Kernel.ioQueue.dequeueAndWakeup(Kernel.COND_DISK_REQ);
-
-    return OK;
+    return device.write( param, ( byte[] )args ) ? OK : ERROR;
     case SYNC:     // synchronize disk data to a real file
-    while ( disk.sync( ) == false )
-        ioQueue.enqueueAndSleep( COND_DISK_REQ );
-    while ( disk.testAndResetReady( ) == false )
-        ioQueue.enqueueAndSleep( COND_DISK_FIN );
-
-    // it's possible that a thread waiting to make a request was released by the disk,
-    // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
-    // and then went back to sleep
-    Kernel.ioQueue.dequeueAndWakeup(Kernel.COND_DISK_REQ);
-    return OK;
+    // write back in-core inodes and dirty file system blocks first; data
+    // that couldn't get blocks is reported, but everything else still goes out
+    int staged = OK;
+    if ( fs != null )
+        staged = fs.sync( );
+    if ( BlockIO.getMode( ) == BlockIO.CACHED )
+        cache.sync( );
+    return ( syncDisk( ) == OK ) ? staged : ERROR;
     case READ:
     switch ( param )
     {
@@ -204,30 +264,48 @@ case INTERRUPT_SOFTWARE: // System calls
     }
     return ERROR;
     case CREAD:   // to be implemented in assignment 4
+    if ( args instanceof Object[] ) { // part of a block: { b, { blkOffset, offset, length } }
+        Object[] range = ( Object[] )args;
+        int[] at = ( int[] )range[1];
+        return cache.read( param, at[0], ( byte[] )range[0], at[1], at[2] ) ? OK : ERROR;
+    }
     return cache.read( param, ( byte[] )args ) ? OK : ERROR;
     case CWRITE:  // to be implemented in assignment 4
+    if ( args instanceof Object[] ) {
+        Object[] range = ( Object[] )args;
+        int[] at = ( int[] )range[1];
+        boolean fresh = at.length > 3 && at[3] != 0; // just allocated; don't read it
+        return cache.write( param, at[0], ( byte[] )range[0], at[1], at[2], fresh ) ? OK : ERROR;
+    }
     return cache.write( param, ( byte[] )args ) ? OK : ERROR;
     case CSYNC:   // to be implemented in assignment 4
+    if ( args != null ) { // only the given blocks
+        cache.sync( ( int[] )args );
+        return OK;
+    }
     cache.sync( );
-    return OK;
+    return syncDisk( );
     case CFLUSH:  // to be implemented in assignment 4
     cache.flush( );
-    return OK;
+    return syncDisk( );
     case OPEN:    // to be implemented in project
     if((myTcb = scheduler.getMyTcb()) != null)
     {
         String[] temp = (String[])args;
         FileTableEntry fte = fs.open(temp[0], temp[1]);
-        int fd = myTcb.getFd(fte);
+        int fd = FdTable.of(myTcb).install(fte);
+        if (fd < 0 && fte != null)
+            fs.close(fte); // No descriptor left to hand back.
         return fd;
     }
     return ERROR;
     case CLOSE:   // to be implemented in project
     if((myTcb = scheduler.getMyTcb()) != null)
     {
-        int result = fs.close(param);
-        myTcb.returnFd(param);
-        return result;
+        FileTableEntry fte = FdTable.of(myTcb).remove(param);
+        if (fte == null)
+            return ERROR;
+        return fs.close(fte);
     }
     else
         return ERROR;
@@ -237,17 +315,53 @@ case INTERRUPT_SOFTWARE: // System calls
     int[] temp = (int[])args;
     return fs.seek(param, temp[0], temp[1]);
     case FORMAT:  // to be implemented in project
+    // the old file system's cached blocks are garbage now: drop them rather than write them back
+    if ( BlockIO.getMode( ) == BlockIO.CACHED )
+        cache.invalidate( );
+    // the new metadata reaches the disk before this returns, the superblock last
     return fs.format(param);
     case DELETE:  // to be implemented in project
     return fs.delete((String)args);
+    case AREAD:   // queue every block of the batch at once and return
+    case AWRITE:
+    device.submit( ( ( IOBatch )args ).getRequests( ) );
+    return OK;
+    case AWAIT:   // sleep until the whole batch has been served
+    return ( ( IOBatch )args ).await( ) ? OK : ERROR;
+    case CREADV:  // read several blocks through the cache, fetching misses in one batch
+    Object[] vec = ( Object[] )args;
+    return cache.read( ( int[] )vec[0], ( byte[][] )vec[1] ) ? OK : ERROR;
+    case MKDIR:
+    return fs.mkdir( ( String )args );
+    case RMDIR:
+    return fs.rmdir( ( String )args );
+    case READDIR: // { path, null }; the entry names come back as a String[] in the null
+    Object[] dirArgs = ( Object[] )args;
+    Vector<String> names = new Vector<String>( );
+    int count = fs.readdir( ( String )dirArgs[0], names );
+    dirArgs[1] = names.toArray( new String[ names.size( ) ] );
+    return count;
+    case CLOAD:   // bring blocks into the cache with one batch of disk reads
+    return cache.load( ( int[] )args ) ? OK : ERROR;
+    case CPREFETCH: // same, without waiting for them
+    return cache.prefetch( ( int[] )args ) ? OK : ERROR;
+    case PREAD:   // { buffer, { offset, length, position } }
+    case PWRITE:
+    if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+        Object[] io = ( Object[] )args;
+        int[] at = ( int[] )io[1];
+        if ( cmd == PREAD )
+            return fs.pread( param, ( byte[] )io[0], at[0], at[1], at[2] );
+        return fs.pwrite( param, ( byte[] )io[0], at[0], at[1], at[2] );
+    }
+    return ERROR;
     }
     return ERROR;
 case INTERRUPT_DISK: // Disk interrupts
-    // wake up the thread waiting for a service completion
-    ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-    // wake up the thread waiting for a request acceptance
-    //    ioQueue.dequeueAndWakeup(COND_DISK_REQ);
+    // wake up the disk queue waiting for a service completion; with several
+    // disks there's no telling whose it is, so every queue checks its own
+    for ( int i = 0; i < diskCount; i++ )
+        ioQueue.dequeueAndWakeup( COND_DISK_FIN + i );
 
     return OK;
 case INTERRUPT_IO:   // other I/O interrupts (not implemented)
@@ -256,6 +370,39 @@ case INTERRUPT_IO:   // other I/O interrupts (not implemented)
 return OK;
 }
 
+// Boot configuration: threados.* settings, one "name=value" per line, from a
+// properties file. Anything given with -D on the command line takes precedence.
+// A missing file just means the defaults.
+private static void loadConfig( String fileName ) {
+Properties config = new Properties( );
+try ( FileInputStream in = new FileInputStream( fileName ) ) {
+    config.load( in );
+}
+catch ( IOException e ) {
+    return;
+}
+for ( String name : config.stringPropertyNames( ) ) {
+    if ( System.getProperty( name ) == null )
+    System.setProperty( name, config.getProperty( name ).trim( ) );
+}
+}
+
+// A disk with its image in memory ("heap") or mapped ("mmap", threados.disk.backend).
+// Members of an array each need a file of their own, so they're always mapped.
+private static Disk newDisk( int blocks, int member ) {
+if ( member >= 0 )
+    return new MappedDisk( blocks, "DISK" + member );
+if ( "mmap".equalsIgnoreCase( System.getProperty( "threados.disk.backend", "heap" ) ) )
+    return new MappedDisk( blocks );
+return new Disk( blocks );
+}
+
+// Save the disk contents to the real DISK file
+private static int syncDisk( ) {
+// the sync waits behind every request queued before it
+return device.sync( ) ? OK : ERROR;
+}
+
 // Spawning a new thread
 private static int sysExec( String args[] ) {
 String thrName = args[0]; // args[0] has a thread name
@@ -283,7 +430,8 @@ try {
     thrObj = thrConst.newInstance( constructorArgs );
     }
     // instantiate a new thread of this object
-    Thread t = new Thread( (Runnable)thrObj );
+    Thread t = virtualExec ? VirtualThreadScheduler.newThread( (Runnable)thrObj )
+                           : new Thread( (Runnable)thrObj );
 
     // add this thread into scheduler's circular list.
     TCB newTcb = scheduler.addThread( t );
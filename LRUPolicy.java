@@ -0,0 +1,40 @@
+import java.util.*;
+
+// Least recently used replacement. The LinkedHashSet keeps frames in access order,
+// so both a hit and a victim choice are O(1).
+public class LRUPolicy implements EvictionPolicy
+{
+    private LinkedHashSet<Integer> order;   // least recently used first
+
+    public LRUPolicy(int frames)
+    {
+        order = new LinkedHashSet<Integer>(frames * 2);
+    }
+
+    public void inserted(int frame, int blockId)
+    {
+        order.add(frame);
+    }
+
+    public void accessed(int frame)
+    {
+        // Move to the most recently used end.
+        if (order.remove(frame))
+            order.add(frame);
+    }
+
+    public void removed(int frame)
+    {
+        order.remove(frame);
+    }
+
+    public int victim()
+    {
+        Iterator<Integer> it = order.iterator();
+        if (!it.hasNext())
+            return -1;
+        int frame = it.next();
+        it.remove();
+        return frame;
+    }
+}
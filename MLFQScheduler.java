@@ -0,0 +1,136 @@
+import java.util.*;
+
+// Multilevel feedback queue scheduling for user threads (-Dthreados.scheduler=mlfq).
+// Scheduler runs its queue round robin with one fixed time slice, so an interactive or
+// I/O-bound thread that wakes up waits behind every CPU-bound one for a full slice each.
+// Here there are several run queues, level 0 the highest; level i's quantum is twice
+// level i-1's. The scheduler always runs the first ready thread of the highest level
+// that has one:
+//   - a new thread starts at level 0;
+//   - a thread that uses up its whole quantum drops a level;
+//   - a thread that blocks before its quantum is up (waiting on the disk in the ioQueue,
+//     on a child, on a lock) gives up the rest of it and moves up a level, so it runs
+//     as soon as it's ready again;
+//   - a thread that is blocked isn't ready, so it is passed over without costing anyone
+//     a quantum;
+//   - every boost interval everything goes back to level 0, so CPU-bound threads
+//     aren't starved.
+public class MLFQScheduler extends SchedulerBase
+{
+    private Vector<Vector<TCB>> levels;     // run queue of each level
+    private HashMap<TCB, Integer> levelOf;
+    private int quantum;                    // level 0's quantum, in ms
+    private int boostInterval;              // ms between moving everything back to level 0
+
+    public MLFQScheduler(int levelCount, int quantum, int boostInterval, int maxThreads)
+    {
+        super(maxThreads);
+        levels = new Vector<Vector<TCB>>();
+        for (int i = 0; i < Math.max(1, levelCount); i++)
+            levels.add(new Vector<TCB>());
+        levelOf = new HashMap<TCB, Integer>();
+        this.quantum = Math.max(TICK, quantum);
+        this.boostInterval = boostInterval;
+    }
+
+    protected void admit(TCB tcb)
+    {
+        synchronized (levels)
+        {
+            levelOf.put(tcb, 0);
+            levels.elementAt(0).add(tcb);
+        }
+    }
+
+    // The first ready thread of the highest level that has one, or null. Threads that have
+    // exited are dropped on the way.
+    private TCB pick()
+    {
+        synchronized (levels)
+        {
+            for (Vector<TCB> queue : levels)
+            {
+                Iterator<TCB> it = queue.iterator();
+                while (it.hasNext())
+                {
+                    TCB tcb = it.next();
+                    if (finished(tcb))
+                    {
+                        it.remove();
+                        levelOf.remove(tcb);
+                        forget(tcb);
+                    }
+                    else if (!blocked(tcb))
+                        return tcb;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Put tcb at the back of the queue for level.
+    private void requeue(TCB tcb, int level)
+    {
+        synchronized (levels)
+        {
+            Integer current = levelOf.get(tcb);
+            if (current == null)
+                return;                     // Gone already.
+            levels.elementAt(current).remove(tcb);
+            level = Math.max(0, Math.min(level, levels.size() - 1));
+            levelOf.put(tcb, level);
+            levels.elementAt(level).add(tcb);
+        }
+    }
+
+    private void boostAll()
+    {
+        synchronized (levels)
+        {
+            for (int i = 1; i < levels.size(); i++)
+            {
+                for (TCB tcb : levels.elementAt(i))
+                {
+                    levelOf.put(tcb, 0);
+                    levels.elementAt(0).add(tcb);
+                }
+                levels.elementAt(i).clear();
+            }
+        }
+    }
+
+    public void run()
+    {
+        setPriority(6);
+        long nextBoost = System.currentTimeMillis() + boostInterval;
+        for (;;)
+        {
+            if (boostInterval > 0 && System.currentTimeMillis() >= nextBoost)
+            {
+                boostAll();
+                nextBoost = System.currentTimeMillis() + boostInterval;
+            }
+
+            TCB tcb = pick();
+            if (tcb == null)
+            {
+                sleepThread(TICK);          // Nothing ready.
+                continue;
+            }
+            int level;
+            synchronized (levels)
+            {
+                level = levelOf.containsKey(tcb) ? levelOf.get(tcb) : 0;
+            }
+
+            // Let it run until it uses up its quantum, blocks or exits.
+            int result = runSlice(tcb, quantum << level);
+            if (result == GAVE_UP)
+                requeue(tcb, level - 1);    // I/O-bound: up a level.
+            else if (result == USED_UP)
+                requeue(tcb, level + 1);    // CPU-bound: down a level.
+            else
+                requeue(tcb, level);        // Dropped by the next pick( ).
+        }
+    }
+}
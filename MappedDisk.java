@@ -0,0 +1,197 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// Disk backed by a memory-mapped file instead of a byte array on the heap.
+// Disk reads the whole DISK file into memory at boot and writes all of it back at every
+// SYNC. This one maps the same file (same layout, so either can open the other's image):
+// reads and writes copy straight to and from the mapping, the operating system pages the
+// image in as it's touched, and SYNC forces only the pages written since the last one.
+// The image can be bigger than the heap, and a sync costs what changed, not the disk size.
+//
+// It speaks the same command protocol as Disk (one command at a time, an interrupt through
+// SysLib.disk( ) when it's done, testAndResetReady( ) to collect it) and simulates the same
+// seek and transfer times, so the DiskQueue and the timings don't change.
+public class MappedDisk extends Disk
+{
+    private final static int trackSize = 10;            // same geometry and timing as Disk
+    private final static int transferTime = 20;
+    private final static int delayPerTrack = 1;
+
+    private final static int SEGMENT_BLOCKS = 1 << 21;  // 1GB of blocks per mapping
+    private final static int PAGE_BLOCKS = 8;           // blocks per 4K page, the unit of a sync
+
+    private final static int IDLE = 0;
+    private final static int READ = 1;
+    private final static int WRITE = 2;
+    private final static int SYNC = 3;
+
+    private int diskSize;
+    private FileChannel channel;
+    private MappedByteBuffer segments[];
+    private BitSet dirtyPages;                           // pages written since the last sync
+
+    private int command;
+    private boolean readyBuffer;
+    private byte buffer[];
+    private int currentBlockId;
+    private int targetBlockId;
+
+    public MappedDisk(int totalBlocks)
+    {
+        this(totalBlocks, "DISK");
+    }
+
+    // A disk kept in some other file, for the members of a DiskArray.
+    public MappedDisk(int totalBlocks, String fileName)
+    {
+        super(0);                                        // Disk keeps one block on the heap; unused.
+        diskSize = (totalBlocks > 0) ? totalBlocks : 1;
+        dirtyPages = new BitSet();
+        command = IDLE;
+        readyBuffer = false;
+        try
+        {
+            channel = new RandomAccessFile(fileName, "rw").getChannel();
+            long bytes = (long)diskSize * blockSize;
+            segments = new MappedByteBuffer[(diskSize + SEGMENT_BLOCKS - 1) / SEGMENT_BLOCKS];
+            for (int i = 0; i < segments.length; i++)
+            {
+                long start = (long)i * SEGMENT_BLOCKS * blockSize;
+                long length = Math.min((long)SEGMENT_BLOCKS * blockSize, bytes - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length); // Extends a short file.
+            }
+        }
+        catch (IOException e)
+        {
+            SysLib.cerr(e.toString() + "\n");
+            segments = new MappedByteBuffer[0];
+        }
+    }
+
+    public synchronized boolean read(int blockId, byte buffer[])
+    {
+        if (blockId < 0 || blockId >= diskSize || blockId / SEGMENT_BLOCKS >= segments.length)
+        {
+            SysLib.cerr("threadOS: a wrong blockId for read\n");
+            return false;
+        }
+        return startCommand(READ, blockId, buffer);
+    }
+
+    public synchronized boolean write(int blockId, byte buffer[])
+    {
+        if (blockId < 0 || blockId >= diskSize || blockId / SEGMENT_BLOCKS >= segments.length)
+        {
+            SysLib.cerr("threadOS: a wrong blockId for write\n");
+            return false;
+        }
+        return startCommand(WRITE, blockId, buffer);
+    }
+
+    public synchronized boolean sync()
+    {
+        return startCommand(SYNC, targetBlockId, null);
+    }
+
+    public synchronized boolean testAndResetReady()
+    {
+        if (command == IDLE && readyBuffer)
+        {
+            readyBuffer = false;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean testReady()
+    {
+        return command == IDLE && readyBuffer;
+    }
+
+    private boolean startCommand(int newCommand, int blockId, byte data[])
+    {
+        if (command != IDLE || readyBuffer)
+            return false;                                // Busy, or the last result isn't collected.
+        buffer = data;
+        targetBlockId = blockId;
+        command = newCommand;
+        notify();
+        return true;
+    }
+
+    private synchronized void waitCommand()
+    {
+        while (command == IDLE)
+        {
+            try { wait(); } catch (InterruptedException e) {}
+            readyBuffer = false;
+        }
+    }
+
+    private synchronized void finishCommand()
+    {
+        command = IDLE;
+        readyBuffer = true;
+        SysLib.disk();                                   // Interrupt: the command is done.
+    }
+
+    private void seek()
+    {
+        int delay = transferTime + delayPerTrack * Math.abs(targetBlockId / trackSize - currentBlockId / trackSize);
+        try { Thread.sleep(delay); } catch (InterruptedException e) {}
+        currentBlockId = targetBlockId;
+    }
+
+    // The mapping holding blockId, positioned at its first byte.
+    private ByteBuffer blockAt(int blockId)
+    {
+        ByteBuffer segment = segments[blockId / SEGMENT_BLOCKS].duplicate();
+        segment.position((blockId % SEGMENT_BLOCKS) * blockSize);
+        return segment;
+    }
+
+    // Force the pages written since the last sync, one contiguous run at a time.
+    private void forceDirty()
+    {
+        for (int page = dirtyPages.nextSetBit(0); page >= 0; )
+        {
+            int end = dirtyPages.nextClearBit(page);
+            int first = page * PAGE_BLOCKS;
+            int last = Math.min(end * PAGE_BLOCKS, diskSize);    // exclusive
+            while (first < last)
+            {
+                int segment = first / SEGMENT_BLOCKS;
+                int upTo = Math.min(last, (segment + 1) * SEGMENT_BLOCKS);
+                segments[segment].force((first % SEGMENT_BLOCKS) * blockSize, (upTo - first) * blockSize);
+                first = upTo;
+            }
+            page = dirtyPages.nextSetBit(end);
+        }
+        dirtyPages.clear();
+    }
+
+    public void run()
+    {
+        for (;;)
+        {
+            waitCommand();
+            seek();
+            switch (command)
+            {
+                case READ:
+                    blockAt(targetBlockId).get(buffer, 0, blockSize);
+                    break;
+                case WRITE:
+                    blockAt(targetBlockId).put(buffer, 0, blockSize);
+                    dirtyPages.set(targetBlockId / PAGE_BLOCKS);
+                    break;
+                case SYNC:
+                    forceDirty();
+                    break;
+            }
+            finishCommand();
+        }
+    }
+}
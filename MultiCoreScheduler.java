@@ -0,0 +1,134 @@
+import java.util.*;
+
+// Scheduling over several virtual CPUs (-Dthreados.scheduler=smp, -Dthreados.cpus=n).
+// Scheduler lets one user thread run at a time, so however many cores the host has, ThreadOS
+// uses one. Here each virtual CPU is a thread of its own with its own run queue and its own
+// quantum timer, running its queue round robin; n user threads run at once.
+//   - A thread has an affinity for the CPU it last ran on and goes back to that CPU's
+//     queue after each slice, so it stays where its state is warm.
+//   - A new thread goes to the CPU with the shortest queue.
+//   - A CPU with nothing ready steals: it takes the last ready thread from the longest
+//     queue of the others, and the thread's affinity moves with it.
+//   - Blocked threads stay queued but are passed over, as in MLFQScheduler.
+public class MultiCoreScheduler extends SchedulerBase
+{
+    private Cpu cpus[];
+    private int quantum;                    // ms per slice
+
+    public MultiCoreScheduler(int cpuCount, int quantum, int maxThreads)
+    {
+        super(maxThreads);
+        this.quantum = Math.max(TICK, quantum);
+        cpus = new Cpu[Math.max(1, cpuCount)];
+        for (int i = 0; i < cpus.length; i++)
+            cpus[i] = new Cpu(i);
+    }
+
+    protected void admit(TCB tcb)
+    {
+        Cpu target = cpus[0];
+        for (int i = 1; i < cpus.length; i++)
+        {
+            if (cpus[i].load() < target.load())
+                target = cpus[i];
+        }
+        target.enqueue(tcb);
+    }
+
+    // Start the CPUs; from then on they schedule themselves.
+    public void run()
+    {
+        for (int i = 0; i < cpus.length; i++)
+            cpus[i].start();
+    }
+
+    // A ready thread taken from the back of the longest queue other than thief's, or null.
+    private TCB steal(Cpu thief)
+    {
+        Cpu victim = null;
+        for (int i = 0; i < cpus.length; i++)
+        {
+            if (cpus[i] != thief && (victim == null || cpus[i].load() > victim.load()))
+                victim = cpus[i];
+        }
+        return (victim == null) ? null : victim.giveUp();
+    }
+
+    // One virtual CPU: a run queue and the loop serving it.
+    private class Cpu extends Thread
+    {
+        private ArrayDeque<TCB> queue;      // threads with an affinity for this CPU
+
+        public Cpu(int id)
+        {
+            super("cpu" + id);
+            queue = new ArrayDeque<TCB>();
+            setDaemon(true);
+        }
+
+        public synchronized int load()
+        {
+            return queue.size();
+        }
+
+        public synchronized void enqueue(TCB tcb)
+        {
+            queue.addLast(tcb);
+        }
+
+        // The first ready thread in the queue, taken off it; exited ones are dropped.
+        private synchronized TCB next()
+        {
+            for (int i = queue.size(); i > 0; i--)
+            {
+                TCB tcb = queue.pollFirst();
+                if (finished(tcb))
+                {
+                    forget(tcb);
+                    continue;
+                }
+                if (!blocked(tcb))
+                    return tcb;
+                queue.addLast(tcb);         // Not ready; look again next round.
+            }
+            return null;
+        }
+
+        // Hand over the last ready thread in the queue to a thief.
+        public synchronized TCB giveUp()
+        {
+            Iterator<TCB> it = queue.descendingIterator();
+            while (it.hasNext())
+            {
+                TCB tcb = it.next();
+                if (!finished(tcb) && !blocked(tcb))
+                {
+                    it.remove();
+                    return tcb;
+                }
+            }
+            return null;
+        }
+
+        public void run()
+        {
+            setPriority(6);
+            for (;;)
+            {
+                TCB tcb = next();
+                if (tcb == null)
+                    tcb = steal(this);      // It's ours now.
+                if (tcb == null)
+                {
+                    sleepThread(TICK);      // Nothing ready anywhere.
+                    continue;
+                }
+
+                if (runSlice(tcb, quantum) == EXITED)
+                    forget(tcb);
+                else
+                    enqueue(tcb);
+            }
+        }
+    }
+}
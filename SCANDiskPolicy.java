@@ -0,0 +1,38 @@
+import java.util.*;
+
+// Elevator: keep moving the arm in one direction, serving requests in track order,
+// and turn around when there's nothing left ahead.
+// The simulated Disk charges seek time only between the blocks it is asked for, so running
+// the arm out to the edge of the disk before turning would cost nothing and gain nothing;
+// this turns at the last request (the LOOK variant).
+public class SCANDiskPolicy implements DiskSchedulePolicy
+{
+    private boolean up = true;  // Current sweep direction.
+
+    public int choose(List<DiskRequest> pending, int head)
+    {
+        int next = nearestAhead(pending, head);
+        if (next < 0)
+        {
+            up = !up;           // Nothing ahead; reverse the sweep.
+            next = nearestAhead(pending, head);
+        }
+        return next;
+    }
+
+    private int nearestAhead(List<DiskRequest> pending, int head)
+    {
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < pending.size(); i++)
+        {
+            int distance = up ? pending.get(i).blockId - head : head - pending.get(i).blockId;
+            if (distance >= 0 && distance < bestDistance)
+            {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,22 @@
+import java.util.*;
+
+// Shortest seek time first: always serve the request closest to the arm.
+// Lowest total seek, but far-away requests can starve while nearby ones keep arriving.
+public class SSTFDiskPolicy implements DiskSchedulePolicy
+{
+    public int choose(List<DiskRequest> pending, int head)
+    {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < pending.size(); i++)
+        {
+            int distance = Math.abs(pending.get(i).blockId - head);
+            if (distance < bestDistance)
+            {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.*;
+
+// Bookkeeping shared by the schedulers that replace Scheduler's round robin (MLFQScheduler,
+// MultiCoreScheduler): tids, finding the TCB of the calling thread, what a child inherits
+// at exec and what's closed at exit, all the same as Scheduler does them. Subclasses only
+// decide which thread runs when, through admit( ) and runSlice( ).
+// Like Scheduler, a thread is let run by raising its Java priority and parked by lowering
+// it again.
+public abstract class SchedulerBase extends Scheduler
+{
+    protected final static int TICK = 10;   // ms between looks at a running thread
+
+    // What runSlice( ) saw the thread do.
+    protected final static int USED_UP = 0; // ran for the whole slice
+    protected final static int GAVE_UP = 1; // blocked before the slice was up
+    protected final static int EXITED = 2;
+
+    private HashMap<Thread, TCB> tcbs;      // every thread the scheduler knows
+    private boolean tids[];                 // which tids are in use
+    private int nextId;
+
+    public SchedulerBase(int maxThreads)
+    {
+        tcbs = new HashMap<Thread, TCB>();
+        tids = new boolean[Math.max(1, maxThreads)];
+        nextId = 0;
+    }
+
+    // A new thread for the subclass to queue.
+    protected abstract void admit(TCB tcb);
+
+    public TCB getMyTcb()
+    {
+        synchronized (tcbs)
+        {
+            return tcbs.get(Thread.currentThread());
+        }
+    }
+
+    public int getMaxThreads()
+    {
+        return tids.length;
+    }
+
+    public TCB addThread(Thread t)
+    {
+        t.setPriority(2);
+        TCB parent = getMyTcb();
+        int pid = (parent != null) ? parent.getTid() : -1;
+        TCB tcb;
+        synchronized (tcbs)
+        {
+            int tid = getNewTid();
+            if (tid == -1)
+                return null;
+            tcb = new TCB(t, tid, pid);
+            if (parent != null)
+            {
+                // The child inherits its parent's open files.
+                for (int i = 0; i < tcb.ftEnt.length; i++)
+                {
+                    tcb.ftEnt[i] = parent.ftEnt[i];
+                    if (tcb.ftEnt[i] != null)
+                        tcb.ftEnt[i].count++;
+                }
+            }
+            tcbs.put(t, tcb);
+        }
+        admit(tcb);
+        return tcb;
+    }
+
+    public boolean deleteThread()
+    {
+        TCB tcb = getMyTcb();
+        if (tcb == null)
+            return false;
+        for (int fd = 3; fd < tcb.ftEnt.length; fd++)
+        {
+            if (tcb.ftEnt[fd] != null)
+                SysLib.close(fd);
+        }
+        return tcb.setTerminated();
+    }
+
+    public void sleepThread(int milliseconds)
+    {
+        try { Thread.sleep(milliseconds); } catch (InterruptedException e) {}
+    }
+
+    private int getNewTid()
+    {
+        for (int i = 0; i < tids.length; i++)
+        {
+            int tid = (nextId + i) % tids.length;
+            if (!tids[tid])
+            {
+                tids[tid] = true;
+                nextId = (tid + 1) % tids.length;
+                return tid;
+            }
+        }
+        return -1;
+    }
+
+    // The thread has exited and is off every queue: its tid can be reused.
+    protected void forget(TCB tcb)
+    {
+        synchronized (tcbs)
+        {
+            tcbs.remove(tcb.getThread());
+            int tid = tcb.getTid();
+            if (tid >= 0 && tid < tids.length)
+                tids[tid] = false;
+        }
+    }
+
+    // Waiting on something (the disk in the ioQueue, a child, a lock, a sleep) rather than
+    // running or ready to run.
+    protected static boolean blocked(TCB tcb)
+    {
+        Thread.State state = tcb.getThread().getState();
+        return state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING
+            || state == Thread.State.BLOCKED;
+    }
+
+    protected static boolean finished(TCB tcb)
+    {
+        return tcb.getTerminated() || tcb.getThread().getState() == Thread.State.TERMINATED;
+    }
+
+    // Let tcb run for up to slice ms, or until it blocks or exits, whichever comes first.
+    protected int runSlice(TCB tcb, int slice)
+    {
+        Thread t = tcb.getThread();
+        if (t.getState() == Thread.State.NEW)
+            t.start();
+        t.setPriority(4);
+
+        int result = USED_UP;
+        for (int used = 0; used < slice; used += TICK)
+        {
+            sleepThread(TICK);
+            if (finished(tcb))
+            {
+                result = EXITED;
+                break;
+            }
+            if (blocked(tcb))
+            {
+                result = GAVE_UP;
+                break;
+            }
+        }
+
+        if (t.isAlive())
+            t.setPriority(2);
+        return result;
+    }
+}
@@ -1,101 +1,221 @@
+import java.util.Random;
+
 class SuperBlock {
+    public final static int VERSION = 6;    // on-disk layout; older disks get reformatted
+
+    // Inodes for a disk that has to be formatted at boot (-Dthreados.fs.inodes=n).
+    public final static int DEFAULT_INODES = Integer.getInteger("threados.fs.inodes", 64);
+
+    // The directory keeps a record per inode in the root's blocks, so it has to fit in one file.
+    public final static int MAX_INODES = Math.min(Inode.maxBlocks * Directory.entriesPerBlock, Short.MAX_VALUE);
+
     public int totalBlocks; // the number of disk blocks
     public int totalInodes; // the number of inodes
-    public int freeList;    // the block number of the free list's head
+    public int freeList;    // the first data block, where allocation starts looking
+    public int bitmapStart; // the block number of the free-space bitmap's first block
+    public int logStart;    // the metadata journal's first block, right before the bitmap
+    public int logBlocks;   // blocks in the journal
+    public int version;     // layout the disk was formatted with
+    public int logEpoch;    // changes at every format, so an old file system's log is never replayed
+    public int inodeBlocksReady; // inode blocks 1..inodeBlocksReady have been written since the format
+    public boolean formatted; // set when the disk had no valid file system and was formatted
+
+    private FreeMap freeMap;   // which blocks are in use, kept in memory
+    private boolean dirty;     // superblock fields changed since the last sync
+    private int reserved;      // free blocks promised to delayed allocations
    
+    // The epoch of the file system whose superblock is in block, or 0 if block doesn't hold
+    // this version's superblock for a disk of diskSize blocks.
+    public static int formatEpoch(byte[] block, int diskSize)
+    {
+        if (SysLib.bytes2int(block, 24) != VERSION || SysLib.bytes2int(block, 0) != diskSize)
+            return 0;
+        return SysLib.bytes2int(block, 28);
+    }
+
     public SuperBlock( int diskSize ) {
         byte[] superBlock = new byte[Disk.blockSize];
-        SysLib.rawread(0, superBlock);
+        Journal.read(0, superBlock);
         totalBlocks = SysLib.bytes2int(superBlock, 0);
         totalInodes = SysLib.bytes2int(superBlock, 4);
         freeList = SysLib.bytes2int(superBlock, 8);
+        bitmapStart = SysLib.bytes2int(superBlock, 12);
+        logStart = SysLib.bytes2int(superBlock, 16);
+        logBlocks = SysLib.bytes2int(superBlock, 20);
+        version = SysLib.bytes2int(superBlock, 24);
+        logEpoch = SysLib.bytes2int(superBlock, 28);
+        inodeBlocksReady = SysLib.bytes2int(superBlock, 32);
 
         // Verify disk contents
-        if (!(totalBlocks == diskSize && totalInodes > 0 && freeList >= 2))
+        if (!(version == VERSION && totalBlocks == diskSize && totalInodes > 0 && freeList >= 2
+              && bitmapStart == totalBlocks - FreeMap.blocksNeeded(totalBlocks)
+              && logBlocks >= 2 && logStart == bitmapStart - logBlocks && logStart > freeList))
         {
             totalBlocks = diskSize;
-            format(64);
+            format(Math.max(1, Math.min(DEFAULT_INODES, MAX_INODES)));
+            formatted = true;
+        }
+        else
+        {
+            Journal.setRegion(logStart, logBlocks, logEpoch);
+            freeMap = new FreeMap(totalBlocks, bitmapStart);
+            freeMap.load();
         }
     }
 
     // Used in unverified construction from disk file, and in file system formatting.
+    // Nothing is written but the superblock and the bitmap: inode blocks are treated as empty
+    // until they're first written, and data blocks are zeroed in the cache when they're allocated.
     public synchronized void format(int files)
     {
-        byte[] data = new byte[512];  // Local superblock to be saved to disk
-        totalBlocks = 1000;                 // Blocks in disk
-        totalInodes = files;                // Files (inodes) to format
-        freeList = files / 16 + 1;          // Start the free list at the block after the last file to create.
+        totalInodes = files;                // Files (inodes) to format; totalBlocks is the disk's size
+        version = VERSION;
+        freeList = files / Inode.inodesPerBlock + 1; // Data starts at the block after the last inode block.
 
         // If the number of files to create is a multiple of 16, then the superblock will add an extra inode in the previously chosen first free block.
-        if (files % 16 == 0) freeList++;    // In this case, move the pointer to the next one.
+        if (files % Inode.inodesPerBlock == 0) freeList++; // In this case, move the pointer to the next one.
+
+        // The bitmap sits in the last blocks of the disk, so the data blocks stay contiguous.
+        // Only the bitmap is written, instead of chaining every free block together.
+        bitmapStart = totalBlocks - FreeMap.blocksNeeded(totalBlocks);
+        logBlocks = Journal.blocksFor(totalBlocks, files); // Room for the biggest transaction.
+        logStart = bitmapStart - logBlocks;     // The journal goes right before it.
+        int oldEpoch = logEpoch;
+        Random random = new Random();
+        do
+        {
+            logEpoch = random.nextInt();
+        } while (logEpoch == oldEpoch || logEpoch == 0);
+        Journal.reset(logStart, logBlocks, logEpoch);
+        inodeBlocksReady = 0;
+        freeMap = new FreeMap(totalBlocks, bitmapStart);
+        freeMap.format(freeList, logStart);
+        reserved = 0;
+
+        dirty = true;
+        sync();
+    }
 
-        // Load the info into the local superblock.
-        SysLib.int2bytes(totalBlocks, data, 0);
-        SysLib.int2bytes(totalInodes, data, 4);
-        SysLib.int2bytes(freeList, data, 8);
+    // Whether this many files still leave room for data between the inodes and the log.
+    public boolean fits(int files)
+    {
+        int dataStart = files / Inode.inodesPerBlock + 1 + ((files % Inode.inodesPerBlock == 0) ? 1 : 0);
+        return dataStart < totalBlocks - FreeMap.blocksNeeded(totalBlocks) - Journal.blocksFor(totalBlocks, files);
+    }
+
+    // Hand the superblock and whatever parts of the bitmap changed to the journal.
+    public synchronized void sync()
+    {
+        if (dirty)
+        {
+            byte[] superBlock = new byte[Disk.blockSize];
+            Journal.read(0, superBlock);
+            SysLib.int2bytes(totalBlocks, superBlock, 0);
+            SysLib.int2bytes(totalInodes, superBlock, 4);
+            SysLib.int2bytes(freeList, superBlock, 8);
+            SysLib.int2bytes(bitmapStart, superBlock, 12);
+            SysLib.int2bytes(logStart, superBlock, 16);
+            SysLib.int2bytes(logBlocks, superBlock, 20);
+            SysLib.int2bytes(version, superBlock, 24);
+            SysLib.int2bytes(logEpoch, superBlock, 28);
+            SysLib.int2bytes(inodeBlocksReady, superBlock, 32);
+            Journal.write(0, superBlock);
+            dirty = false;
+        }
+        freeMap.sync();
+    }
 
-        // Save the superblock to the disk.
-        SysLib.rawwrite(0, data);
+    // Whether the inode block has been written since the format; if not, it only holds garbage.
+    public synchronized boolean inodeBlockReady(int block)
+    {
+        return block >= 1 && block <= inodeBlocksReady;
+    }
 
-        // Reset local superblock to save on data costs. Negligible issue on modern computers, but a good habit to have for more memory-intensive situations.
-        for (int i = freeList; i < totalBlocks; i++)
+    // Inode blocks up to and including block have been written.
+    public synchronized void inodeBlocksWritten(int block)
+    {
+        if (block > inodeBlocksReady)
         {
-            // Fill block with 0.
-            for (int j = 0; j < Disk.blockSize; j++)
-            {
-                data[j] = (byte)0;
-            }
-
-            // Write a pointer to the next free block position, if one exists.
-            if (i != totalBlocks - 1)
-                SysLib.int2bytes(i + 1, data, 0);
-
-            //Save free block to the disk.
-            SysLib.rawwrite(i, data);
+            inodeBlocksReady = block;
+            dirty = true;
         }
     }
 
-    // Save the superblock
-    public void sync()
+    // Take the first free block at or after goal. Only the in-memory bitmap changes; sync( )
+    // persists it.
+    public int claimBlock(int goal)
     {
-        byte[] superBlock = new byte[Disk.blockSize];
-        SysLib.rawread(0, superBlock);
-        SysLib.int2bytes(totalBlocks, superBlock, 0);
-        SysLib.int2bytes(totalInodes, superBlock, 4);
-        SysLib.int2bytes(freeList, superBlock, 8);
-        SysLib.rawwrite(0, superBlock);
+        return claimRun(goal, 1);    // -1 (ERROR) when the disk is full.
     }
 
-    // Take a free block from the freelist
-    public short claimBlock()
+    // Take length contiguous free blocks, preferably at or after goal. Blocks reserved for
+    // delayed allocations are off limits: the disk counts as full when only they are left.
+    // Returns the first block of the run, or -1 (ERROR) if there is no such run.
+    public synchronized int claimRun(int goal, int length)
     {
-        int result = freeList;                  // Save the current head index
-        byte[] data = new byte[Disk.blockSize]; // Read in the data from the first free block
-        SysLib.rawread(freeList, data);
+        if (freeMap.freeCount() - reserved < length)
+            return -1;
+        return freeMap.claimRun(goal, length);
+    }
 
-        freeList = SysLib.bytes2int(data, 0);   // Move the head index to the next space.
+    // Same, for a caller that reserved the blocks beforehand; the reservation shrinks by
+    // what's claimed.
+    public synchronized int claimReserved(int goal, int length)
+    {
+        int start = freeMap.claimRun(goal, length);
+        if (start != -1)
+            reserved = Math.max(0, reserved - length);
+        return start;
+    }
 
-        SysLib.int2bytes(0, data, 0);           // Clear the index after it's been copied out.
+    // Give back a block claimReserved handed out that wasn't used; it's reserved again.
+    public synchronized void unclaimReserved(int blockNumber)
+    {
+        freeMap.release(blockNumber);
+        reserved++;
+    }
 
-        SysLib.rawwrite(result, data);          // Write back the cleared file.
+    // Hold length contiguous free blocks for a growing file, preferably at or after goal.
+    // Held blocks stay free in the bitmap on disk until claimHeld( ) takes one.
+    // Returns the first block of the run, or -1 (ERROR) if there is no such run.
+    public synchronized int holdRun(int goal, int length)
+    {
+        if (freeMap.freeCount() - reserved < length)
+            return -1;
+        return freeMap.holdRun(goal, length);
+    }
 
-        sync();                                 // Superblock has changed; update disk.
-        
-        return (short)result;                          // Return the index.
+    // Take a block out of a held run.
+    public boolean claimHeld(int blockNumber)
+    {
+        return freeMap.claimHeld(blockNumber);
     }
 
-    // Return a block to head of freelist
-    public void returnBlock(int blockNumber)
+    // Give back a held block that was never used.
+    public void releaseHeld(int blockNumber)
     {
-        byte[] data = new byte[512];        // Byte array of data for transfer.
-        for(int i = 0; i < Disk.blockSize; i++)
-        {
-            data[i] = (byte)0;
-        }
+        freeMap.releaseHeld(blockNumber);
+    }
+
+    // Set aside count free blocks to be claimed later, so data written now is sure to
+    // have somewhere to go. Returns false if there aren't that many left.
+    public synchronized boolean reserve(int count)
+    {
+        if (freeMap.freeCount() - reserved < count)
+            return false;
+        reserved += count;
+        return true;
+    }
 
-        SysLib.int2bytes(freeList, data, 0);
-        SysLib.rawwrite(blockNumber, data); // Write back returned block.
+    // Give back a reservation whose blocks aren't needed after all.
+    public synchronized void unreserve(int count)
+    {
+        reserved = Math.max(0, reserved - count);
+    }
 
-        freeList = blockNumber;
+    // Return a block to the free space
+    public void returnBlock(int blockNumber)
+    {
+        freeMap.release(blockNumber);
     }
-}
\ No newline at end of file
+}
@@ -113,6 +113,26 @@ public class SysLib {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CWRITE, blkNumber, b);
     }
 
+    // Copy length bytes at blkOffset in a cached block into b[offset..].
+    public static int cread(int blkNumber, int blkOffset, byte[] b, int offset, int length)
+    {
+        Object[] args = {b, new int[] {blkOffset, offset, length}};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CREAD, blkNumber, args);
+    }
+
+    // Copy b[offset..offset+length) into a cached block at blkOffset.
+    public static int cwrite(int blkNumber, int blkOffset, byte[] b, int offset, int length)
+    {
+        return cwrite(blkNumber, blkOffset, b, offset, length, false);
+    }
+
+    // Same; fresh means the block was just allocated and is never read from the disk.
+    public static int cwrite(int blkNumber, int blkOffset, byte[] b, int offset, int length, boolean fresh)
+    {
+        Object[] args = {b, new int[] {blkOffset, offset, length, fresh ? 1 : 0}};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CWRITE, blkNumber, args);
+    }
+
     public static int flush()
     {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CFLUSH, 0, null);
@@ -123,6 +143,87 @@ public class SysLib {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CSYNC, 0, null);
     }
 
+    // Write back just these blocks if they're dirty; the Disk isn't synced to its file.
+    public static int csync(int blkNumbers[])
+    {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CSYNC, 0, blkNumbers);
+    }
+
+    // Submit reads of several blocks at once; returns a handle to pass to await( ), or null.
+    public static IOBatch aread(int blkNumbers[], byte b[][])
+    {
+        IOBatch batch = new IOBatch(DiskRequest.READ, blkNumbers, b);
+        if (Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.AREAD, 0, batch) == Kernel.ERROR)
+            return null;
+        return batch;
+    }
+
+    public static IOBatch awrite(int blkNumbers[], byte b[][])
+    {
+        IOBatch batch = new IOBatch(DiskRequest.WRITE, blkNumbers, b);
+        if (Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.AWRITE, 0, batch) == Kernel.ERROR)
+            return null;
+        return batch;
+    }
+
+    public static int await(IOBatch batch)
+    {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.AWAIT, 0, batch);
+    }
+
+    public static int creadv(int blkNumbers[], byte b[][])
+    {
+        Object[] args = {blkNumbers, b};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CREADV, 0, args);
+    }
+
+    public static int cload(int blkNumbers[])
+    {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CLOAD, 0, blkNumbers);
+    }
+
+    // Like cload, but returns as soon as the reads are queued.
+    public static int cprefetch(int blkNumbers[])
+    {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CPREFETCH, 0, blkNumbers);
+    }
+
+    // Read length bytes at position in the file into buffer[offset..], without using or
+    // moving the seek pointer. Returns the bytes read, or -1.
+    public static int pread(int fd, byte[] buffer, int offset, int length, int position)
+    {
+        Object[] args = {buffer, new int[] {offset, length, position}};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.PREAD, fd, args);
+    }
+
+    // Write buffer[offset..offset+length) at position in the file, without using or moving
+    // the seek pointer. position can't be past the end of the file.
+    public static int pwrite(int fd, byte[] buffer, int offset, int length, int position)
+    {
+        Object[] args = {buffer, new int[] {offset, length, position}};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.PWRITE, fd, args);
+    }
+
+    public static int mkdir(String path)
+    {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.MKDIR, 0, path);
+    }
+
+    public static int rmdir(String path)
+    {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.RMDIR, 0, path);
+    }
+
+    // Adds the names in the directory to names; returns the count, or -1.
+    public static int readdir(String path, Vector<String> names)
+    {
+        Object[] args = {path, null}; // the kernel hands the names back in args[1]
+        int count = Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READDIR, 0, args);
+        if (count > 0)
+            Collections.addAll(names, (String[])args[1]);
+        return count;
+    }
+
     public static String[] stringToArgs(String s)
     {
         StringTokenizer token = new StringTokenizer(s," ");
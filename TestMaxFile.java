@@ -0,0 +1,109 @@
+// Writing past the largest file an inode can map. The write has to stop at the limit and say
+// so with a short count (and a write at the limit fails), and every byte it did write has to
+// read back, through the direct, indirect and double indirect blocks alike. Run it twice:
+//   l TestMaxFile          formats, writes the file and syncs
+//   (quit and boot again)
+//   l TestMaxFile check    reads it back from the disk
+// The disk needs more blocks than the default to hold a file that big; boot with
+// -Dthreados.disk.blocks=20000. On a smaller disk the write stops where the disk fills up
+// instead, which is checked the same way.
+public class TestMaxFile extends Thread
+{
+    private final static int maxBytes = Inode.maxBlocks * Disk.blockSize;
+
+    private boolean check = false;
+
+    public TestMaxFile()
+    {
+    }
+
+    public TestMaxFile(String args[])
+    {
+        check = args.length > 0 && args[0].equals("check");
+    }
+
+    public void run()
+    {
+        if (check)
+            report(readBack(-1));
+        else
+            setUp();
+        SysLib.exit();
+    }
+
+    private void setUp()
+    {
+        SysLib.format(64);
+        byte data[] = new byte[maxBytes + 3 * Disk.blockSize];
+        for (int i = 0; i < data.length; i++)
+            data[i] = pattern(i);
+
+        int fd = SysLib.open("big", "w");
+        int written = SysLib.write(fd, data);
+        int again = SysLib.write(fd, new byte[1]);
+        SysLib.close(fd);
+        SysLib.sync();
+
+        boolean ok = true;
+        if (written == maxBytes)
+        {
+            if (again != -1)
+            {
+                SysLib.cout("a write at the largest size returned " + again + "\n");
+                ok = false;
+            }
+        }
+        else if (written <= 0 || written > maxBytes)
+        {
+            SysLib.cout("write returned " + written + " of " + data.length + "\n");
+            ok = false;
+        }
+        else
+            SysLib.cout("the disk filled up after " + written + " bytes\n");
+
+        report(ok && readBack(written));
+        SysLib.cout("Now boot again and run \"l TestMaxFile check\"\n");
+    }
+
+    // Read the file back; its size has to be expected, unless that's -1.
+    private boolean readBack(int expected)
+    {
+        int fd = SysLib.open("big", "r");
+        int size = SysLib.fsize(fd);
+        if (size < 0 || (expected != -1 && size != expected))
+        {
+            SysLib.cout("fsize " + size + ", wrote " + expected + "\n");
+            SysLib.close(fd);
+            return false;
+        }
+
+        byte data[] = new byte[size + Disk.blockSize];
+        int read = SysLib.read(fd, data);
+        SysLib.close(fd);
+        if (read != size)
+        {
+            SysLib.cout("read " + read + " of " + size + "\n");
+            return false;
+        }
+        for (int i = 0; i < size; i++)
+        {
+            if (data[i] != pattern(i))
+            {
+                SysLib.cout("byte " + i + " (block " + i / Disk.blockSize + ") is wrong\n");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Different in every block and at every offset in it.
+    private static byte pattern(int i)
+    {
+        return (byte)(i / Disk.blockSize * 7 + i);
+    }
+
+    private void report(boolean ok)
+    {
+        SysLib.cout("TestMaxFile: " + (ok ? "Correct behavior" : "Wrong behavior") + "\n");
+    }
+}
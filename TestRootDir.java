@@ -0,0 +1,76 @@
+// Opening "/" as a file must fail, and must leave the directory alone. Run it twice:
+//   l TestRootDir          formats, makes some entries, tries to open "/" and syncs
+//   (quit and boot again)
+//   l TestRootDir check    checks the entries survived the reboot
+public class TestRootDir extends Thread
+{
+    private boolean check = false;
+
+    public TestRootDir()
+    {
+    }
+
+    public TestRootDir(String args[])
+    {
+        check = args.length > 0 && args[0].equals("check");
+    }
+
+    public void run()
+    {
+        if (check)
+            report(intact());
+        else
+            setUp();
+        SysLib.exit();
+    }
+
+    private void setUp()
+    {
+        SysLib.format(48);
+        SysLib.mkdir("/d");
+        int fd = SysLib.open("/d/f", "w");
+        SysLib.write(fd, "root".getBytes());
+        SysLib.close(fd);
+        for (int i = 0; i < Directory.entriesPerBlock; i++) // Fill the first directory block.
+            SysLib.close(SysLib.open("/d/g" + i, "w"));
+        SysLib.sync();                  // The directory is on disk now, in the root's blocks.
+
+        boolean refused = true;
+        String modes[] = { "w", "w+", "a", "r" };
+        for (int i = 0; i < modes.length; i++)
+        {
+            fd = SysLib.open("/", modes[i]);
+            if (fd >= 0)
+            {
+                SysLib.cout("open(\"/\", \"" + modes[i] + "\") = " + fd + ": wrong\n");
+                SysLib.close(fd);       // Keep going: the sync shows what it did to the directory.
+                refused = false;
+            }
+        }
+        SysLib.mkdir("/e");             // Only the second directory block changes.
+        SysLib.sync();
+
+        report(refused && intact());
+        SysLib.cout("Now boot again and run \"l TestRootDir check\"\n");
+    }
+
+    private boolean intact()
+    {
+        java.util.Vector<String> names = new java.util.Vector<String>();
+        int fd = SysLib.open("/d/f", "r");
+        byte data[] = new byte[4];
+        int read = (fd >= 0) ? SysLib.read(fd, data) : -1;
+        SysLib.close(fd);
+
+        boolean ok = SysLib.readdir("/", names) == 2 && names.contains("d") && names.contains("e")
+                     && read == 4 && new String(data).equals("root");
+        if (!ok)
+            SysLib.cout("the directory is damaged: / holds " + names + ", /d/f read " + read + "\n");
+        return ok;
+    }
+
+    private void report(boolean ok)
+    {
+        SysLib.cout("TestRootDir: " + (ok ? "Correct behavior" : "Wrong behavior") + "\n");
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.*;
+
+// 2Q replacement (Johnson and Shasha). Blocks seen for the first time go on a short FIFO (a1in);
+// only blocks that come back after falling out of it, remembered by block number in a ghost
+// list (a1out), are promoted to the main LRU queue (am). One-off scans of the disk therefore
+// can't push the hot blocks out of the cache.
+public class TwoQueuePolicy implements EvictionPolicy
+{
+    private LinkedHashSet<Integer> a1in;    // frames seen once, oldest first
+    private LinkedHashSet<Integer> am;      // frames seen again, least recently used first
+    private LinkedHashSet<Integer> a1out;   // block numbers recently evicted from a1in
+    private int frameBlock[];               // block held by each frame, for the ghost list
+    private int kin;                        // target size of a1in
+    private int kout;                       // max size of a1out
+
+    public TwoQueuePolicy(int frames)
+    {
+        a1in = new LinkedHashSet<Integer>();
+        am = new LinkedHashSet<Integer>();
+        a1out = new LinkedHashSet<Integer>();
+        frameBlock = new int[frames];
+        kin = Math.max(1, frames / 4);      // The sizes suggested in the 2Q paper.
+        kout = Math.max(1, frames / 2);
+    }
+
+    public void inserted(int frame, int blockId)
+    {
+        frameBlock[frame] = blockId;
+        if (a1out.remove(blockId))
+            am.add(frame);                  // Seen before; it's hot.
+        else
+            a1in.add(frame);
+    }
+
+    public void accessed(int frame)
+    {
+        // Hits in a1in are left alone; they're usually correlated references.
+        if (am.remove(frame))
+            am.add(frame);
+    }
+
+    public void removed(int frame)
+    {
+        a1in.remove(frame);
+        am.remove(frame);
+    }
+
+    public int victim()
+    {
+        if (a1in.size() > kin || am.isEmpty())
+        {
+            int frame = removeFirst(a1in);
+            if (frame < 0)
+                return removeFirst(am);
+
+            // Remember the block so a quick re-reference promotes it.
+            a1out.add(frameBlock[frame]);
+            if (a1out.size() > kout)
+                removeFirst(a1out);
+            return frame;
+        }
+        return removeFirst(am);
+    }
+
+    private static int removeFirst(LinkedHashSet<Integer> set)
+    {
+        Iterator<Integer> it = set.iterator();
+        if (!it.hasNext())
+            return -1;
+        int first = it.next();
+        it.remove();
+        return first;
+    }
+}
@@ -0,0 +1,106 @@
+import java.lang.reflect.*;
+import java.util.*;
+
+// Execution mode for many lightweight user threads (-Dthreados.exec=virtual).
+// Scheduler starts one user thread per time slice and finds the caller's TCB by scanning its
+// whole queue, so thousands of clients take thousands of slices just to get going. Here
+// every program is started as soon as it's exec'd and left to the JVM to schedule: on a
+// runtime with virtual threads each program is a virtual thread. TCBs are found by hash,
+// and a reaper thread frees the tids of programs that have exited.
+//
+// A sleep, or a wait for a disk request on the usual read and write paths, parks the virtual
+// thread instead of holding an OS thread: DiskRequest waits on a Condition, and the locks
+// kept across the disk I/O there (a BufferCache shard's, a file table entry's, an Inode's
+// pointers) are ReentrantLocks. Until Java 24, blocking under a monitor still pins the
+// carrier thread, and these paths still do:
+//   join, which waits on a SyncQueue (only shipped as a class file, so its monitors stay);
+//   the first open of a file since boot, which reads the inode under the monitors of
+//   FileStructureTable.falloc and InodeTable.get, and the first lookup, which reads the
+//   directory under the Directory's;
+//   sync, format, delete, mkdir and rmdir, under the FileSystem's monitor, with the journal
+//   commit under its commitLock.
+//
+// Without virtual threads (before Java 21) programs get platform threads with a small
+// stack (-Dthreados.exec.stack=bytes), which still lets a few thousand run at once.
+public class VirtualThreadScheduler extends SchedulerBase
+{
+    private final static long STACK_SIZE = Long.getLong("threados.exec.stack", 256 * 1024);
+
+    // Resolved once, when the class is loaded.
+    private final static Object virtualBuilder; // Thread.ofVirtual( ), or null if there isn't one
+    private final static Method unstarted;      // Thread.Builder.unstarted(Runnable)
+    private static int created;             // for naming platform threads
+
+    static
+    {
+        Object builder = null;
+        Method method = null;
+        try
+        {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            method = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e)
+        {
+            builder = null;                 // Not on this runtime (or still a preview).
+        }
+        virtualBuilder = builder;
+        unstarted = method;
+    }
+
+    private Vector<TCB> live;               // started and not yet reaped
+
+    public VirtualThreadScheduler(int maxThreads)
+    {
+        super(maxThreads);
+        live = new Vector<TCB>();
+    }
+
+    // A thread for a user program, not started yet.
+    public static Thread newThread(Runnable program)
+    {
+        if (virtualBuilder != null)
+        {
+            try
+            {
+                return (Thread)unstarted.invoke(virtualBuilder, program);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                // Fall back to a platform thread for this one.
+            }
+        }
+        synchronized (VirtualThreadScheduler.class)
+        {
+            return new Thread(null, program, "user-" + created++, STACK_SIZE);
+        }
+    }
+
+    protected void admit(TCB tcb)
+    {
+        live.add(tcb);
+        tcb.getThread().start();
+    }
+
+    // Reap exited programs so their tids can be reused.
+    public void run()
+    {
+        for (;;)
+        {
+            sleepThread(TICK * 10);
+            synchronized (live)
+            {
+                Iterator<TCB> it = live.iterator();
+                while (it.hasNext())
+                {
+                    TCB tcb = it.next();
+                    if (finished(tcb))
+                    {
+                        it.remove();
+                        forget(tcb);
+                    }
+                }
+            }
+        }
+    }
+}